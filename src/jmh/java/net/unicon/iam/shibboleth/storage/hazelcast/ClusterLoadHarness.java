@@ -0,0 +1,258 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.core.HazelcastInstance;
+import net.unicon.iam.shibboleth.storage.hazelcast.metrics.LatencyHistogram;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.VersionMismatchException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives IdP-like traffic against a cluster of embedded members on the loopback interface while members are killed
+ * and restarted, and reports the throughput, latency percentiles, errors, version mismatches and lost records.
+ * <p>
+ * The first {@code load.nodes} members each run a storage service, like IdP nodes embedding Hazelcast, and share the
+ * same sessions, so concurrent versioned updates from several nodes conflict. The other members only hold data; every
+ * {@code load.killIntervalSeconds} one of them is terminated without a graceful shutdown, and a new member joins
+ * {@code load.restartDelaySeconds} later. A member is only killed once the cluster is safe again, so with the default
+ * of one backup no record should ever be lost. Run with {@code ./gradlew loadHarness}, e.g.
+ * {@code -Pload.members=5 -Pload.nodes=2 -Pload.durationSeconds=300}. The process exits with 1 if records were lost.
+ */
+public class ClusterLoadHarness {
+    private static final int SESSIONS = 50000;
+
+    enum Operation {
+        SESSION_CREATE(10, false), SESSION_TOUCH(35, true), SESSION_READ(30, true), SESSION_UPDATE(10, true),
+        REPLAY_CREATE(10, false), TICKET_CHURN(5, false);
+
+        private final int weight;
+        private final boolean existingSession;
+
+        Operation(int weight, boolean existingSession) {
+            this.weight = weight;
+            this.existingSession = existingSession;
+        }
+
+        static Operation random() {
+            int choice = ThreadLocalRandom.current().nextInt(100);
+            for (Operation operation : values()) {
+                choice -= operation.weight;
+                if (choice < 0) {
+                    return operation;
+                }
+            }
+            return SESSION_READ;
+        }
+    }
+
+    private final String service = System.getProperty("load.service", "map");
+    private final int members = Integer.getInteger("load.members", 4);
+    private final int nodes = Integer.getInteger("load.nodes", 2);
+    private final int threadsPerNode = Integer.getInteger("load.threadsPerNode", 4);
+    private final int valueSize = Integer.getInteger("load.valueSize", 1024);
+    private final long durationMillis = TimeUnit.SECONDS.toMillis(Integer.getInteger("load.durationSeconds", 60));
+    private final long killIntervalMillis = TimeUnit.SECONDS.toMillis(Integer.getInteger("load.killIntervalSeconds", 15));
+    private final long restartDelayMillis = TimeUnit.SECONDS.toMillis(Integer.getInteger("load.restartDelaySeconds", 5));
+
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+    private final LongAdder versionMismatches = new LongAdder();
+    private final LongAdder lostRecords = new LongAdder();
+    private final LongAdder duplicateReplays = new LongAdder();
+    private final AtomicReferenceArray<String> sessions = new AtomicReferenceArray<>(SESSIONS);
+    private final AtomicLong sessionCount = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile boolean running = true;
+    private int kills;
+
+    ClusterLoadHarness() {
+        for (Operation operation : Operation.values()) {
+            this.latencies.put(operation, new LatencyHistogram());
+            this.errors.put(operation, new LongAdder());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ClusterLoadHarness harness = new ClusterLoadHarness();
+        boolean lost = harness.run();
+        System.exit(lost ? 1 : 0);
+    }
+
+    /**
+     * @return whether records were lost
+     */
+    boolean run() throws Exception {
+        if (this.nodes < 1 || this.members < this.nodes) {
+            throw new IllegalArgumentException("load.nodes must be at least 1 and at most load.members");
+        }
+        System.out.printf("%d members, %d running the %s storage service with %d threads each, for %d seconds%n",
+                this.members, this.nodes, this.service, this.threadsPerNode, TimeUnit.MILLISECONDS.toSeconds(this.durationMillis));
+        try (EmbeddedCluster cluster = new EmbeddedCluster("load-harness-" + System.nanoTime(), this.members)) {
+            List<AbstractHazelcastMapBackedStorageService> storageServices = new ArrayList<>();
+            for (int i = 0; i < this.nodes; i++) {
+                AbstractHazelcastMapBackedStorageService storageService = StorageServiceBenchmark.createStorageService(this.service, cluster.getMember(i));
+                storageService.setId("load-" + i);
+                storageService.setShutdownInstanceOnDestroy(false);
+                storageService.initialize();
+                storageServices.add(storageService);
+            }
+
+            String value = StorageServiceBenchmark.randomValue(this.valueSize);
+            List<Thread> workers = new ArrayList<>();
+            for (AbstractHazelcastMapBackedStorageService storageService : storageServices) {
+                for (int i = 0; i < this.threadsPerNode; i++) {
+                    Thread worker = new Thread(() -> work(storageService, value), "load-" + storageService.getId() + "-" + i);
+                    worker.start();
+                    workers.add(worker);
+                }
+            }
+
+            long start = System.currentTimeMillis();
+            long nextKill = start + this.killIntervalMillis;
+            long lastReport = start;
+            long lastCount = 0;
+            while (System.currentTimeMillis() < start + this.durationMillis) {
+                Thread.sleep(100);
+                long now = System.currentTimeMillis();
+                if (now >= nextKill && cluster.getMembers().size() > this.nodes) {
+                    killAndRestart(cluster);
+                    now = System.currentTimeMillis();
+                    nextKill = now + this.killIntervalMillis;
+                }
+                if (now >= lastReport + TimeUnit.SECONDS.toMillis(5)) {
+                    long count = totalCount();
+                    System.out.printf("%6ds %10.0f ops/s %3d members %6d errors %6d lost%n", TimeUnit.MILLISECONDS.toSeconds(now - start),
+                            (count - lastCount) * 1000.0 / (now - lastReport), cluster.getMembers().size(), totalErrors(), this.lostRecords.sum());
+                    lastCount = count;
+                    lastReport = now;
+                }
+            }
+            this.running = false;
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            report(System.currentTimeMillis() - start);
+            storageServices.forEach(AbstractHazelcastMapBackedStorageService::destroy);
+        }
+        return this.lostRecords.sum() > 0;
+    }
+
+    /**
+     * Wait for the cluster to be safe, terminate a random data member and start a new one.
+     */
+    private void killAndRestart(EmbeddedCluster cluster) throws InterruptedException {
+        HazelcastInstance node = cluster.getMember(0);
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(2);
+        while (!node.getPartitionService().isClusterSafe() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        int index = this.nodes + ThreadLocalRandom.current().nextInt(cluster.getMembers().size() - this.nodes);
+        cluster.killMember(index);
+        this.kills++;
+        System.out.printf("killed a member, %d left%n", cluster.getMembers().size());
+        Thread.sleep(this.restartDelayMillis);
+        cluster.addMember();
+        System.out.printf("started a member, %d members%n", cluster.getMembers().size());
+    }
+
+    private void work(AbstractHazelcastMapBackedStorageService storageService, String value) {
+        while (this.running) {
+            Operation operation = Operation.random();
+            String session = randomSession();
+            if (session == null && operation.existingSession) {
+                operation = Operation.SESSION_CREATE;
+            }
+            long start = System.nanoTime();
+            try {
+                execute(storageService, operation, session, value);
+                this.latencies.get(operation).record(System.nanoTime() - start);
+            } catch (IOException | RuntimeException e) {
+                this.errors.get(operation).increment();
+            }
+        }
+    }
+
+    private void execute(AbstractHazelcastMapBackedStorageService storageService, Operation operation, String session, String value) throws IOException {
+        long expiration = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+        switch (operation) {
+            case SESSION_CREATE:
+                String key = "session-" + this.sequence.incrementAndGet();
+                storageService.create("session", key, value, expiration);
+                this.sessions.set((int) (this.sessionCount.getAndIncrement() % SESSIONS), key);
+                break;
+            case SESSION_TOUCH:
+                if (!storageService.updateExpiration("session", session, expiration)) {
+                    this.lostRecords.increment();
+                }
+                break;
+            case SESSION_READ:
+                if (storageService.read("session", session) == null) {
+                    this.lostRecords.increment();
+                }
+                break;
+            case SESSION_UPDATE:
+                StorageRecord record = storageService.read("session", session);
+                if (record == null) {
+                    this.lostRecords.increment();
+                    break;
+                }
+                try {
+                    storageService.updateWithVersion(record.getVersion(), "session", session, value, expiration);
+                } catch (VersionMismatchException e) {
+                    this.versionMismatches.increment();
+                }
+                break;
+            case REPLAY_CREATE:
+                // a false result for a new id is a retried create that had already been applied
+                if (!storageService.create("replay", "id-" + this.sequence.incrementAndGet(), "", System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(5))) {
+                    this.duplicateReplays.increment();
+                }
+                break;
+            case TICKET_CHURN:
+                String ticket = "ST-" + this.sequence.incrementAndGet();
+                storageService.create("cas", ticket, value, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10));
+                if (storageService.read("cas", ticket) == null) {
+                    this.lostRecords.increment();
+                }
+                storageService.delete("cas", ticket);
+                break;
+            default:
+                throw new IllegalStateException("Unknown operation " + operation);
+        }
+    }
+
+    private String randomSession() {
+        long count = Math.min(this.sessionCount.get(), SESSIONS);
+        return count == 0 ? null : this.sessions.get(ThreadLocalRandom.current().nextInt((int) count));
+    }
+
+    private long totalCount() {
+        return this.latencies.values().stream().mapToLong(LatencyHistogram::getCount).sum();
+    }
+
+    private long totalErrors() {
+        return this.errors.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    private void report(long elapsedMillis) {
+        System.out.printf("%n%-15s %10s %10s %8s %10s %10s %10s %10s%n", "operation", "count", "ops/s", "errors", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram latency = this.latencies.get(operation);
+            System.out.printf("%-15s %10d %10.0f %8d %10.3f %10.3f %10.3f %10.3f%n", operation, latency.getCount(),
+                    latency.getCount() * 1000.0 / elapsedMillis, this.errors.get(operation).sum(),
+                    latency.getPercentileNanos(50) / 1e6, latency.getPercentileNanos(99) / 1e6,
+                    latency.getPercentileNanos(99.9) / 1e6, latency.getMaxNanos() / 1e6);
+        }
+        System.out.printf("%nmembers killed: %d%nversion mismatches: %d%nduplicate replay creates: %d%nlost records: %d%n",
+                this.kills, this.versionMismatches.sum(), this.duplicateReplays.sum(), this.lostRecords.sum());
+    }
+}
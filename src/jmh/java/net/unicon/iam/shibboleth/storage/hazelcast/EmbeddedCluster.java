@@ -0,0 +1,76 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceNotActiveException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A cluster of embedded Hazelcast members joined over TCP on the loopback interface.
+ */
+public class EmbeddedCluster implements AutoCloseable {
+    private final String clusterName;
+    private final List<HazelcastInstance> members = new ArrayList<>();
+
+    public EmbeddedCluster(String clusterName, int size) {
+        this.clusterName = clusterName;
+        for (int i = 0; i < size; i++) {
+            this.members.add(Hazelcast.newHazelcastInstance(newConfig()));
+        }
+    }
+
+    protected Config newConfig() {
+        Config config = new Config();
+        config.setClusterName(this.clusterName);
+        config.setProperty("hazelcast.logging.type", "none");
+        config.setProperty("hazelcast.phone.home.enabled", "false");
+        config.getNetworkConfig().setPort(5701).setPortAutoIncrement(true);
+        config.getNetworkConfig().getInterfaces().setEnabled(true).addInterface("127.0.0.1");
+        JoinConfig join = config.getNetworkConfig().getJoin();
+        join.getMulticastConfig().setEnabled(false);
+        join.getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+        // every member needs the serializers, not just the ones running a storage service
+        HazelcastStorageSerialization.addSerializers(config.getSerializationConfig());
+        return config;
+    }
+
+    public List<HazelcastInstance> getMembers() {
+        return this.members;
+    }
+
+    public HazelcastInstance getMember(int index) {
+        return this.members.get(index);
+    }
+
+    /**
+     * Start an additional member that joins the cluster.
+     */
+    public HazelcastInstance addMember() {
+        HazelcastInstance member = Hazelcast.newHazelcastInstance(newConfig());
+        this.members.add(member);
+        return member;
+    }
+
+    /**
+     * Terminate a member without a graceful shutdown, as if its process was killed.
+     */
+    public void killMember(int index) {
+        this.members.remove(index).getLifecycleService().terminate();
+    }
+
+    @Override
+    public void close() {
+        for (HazelcastInstance member : this.members) {
+            try {
+                member.getLifecycleService().terminate();
+            } catch (HazelcastInstanceNotActiveException e) {
+                // already shut down, e.g. by a storage service
+            }
+        }
+        this.members.clear();
+    }
+}
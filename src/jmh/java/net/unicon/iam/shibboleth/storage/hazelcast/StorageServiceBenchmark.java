@@ -0,0 +1,209 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.config.InMemoryFormat;
+import com.hazelcast.core.HazelcastInstance;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.VersionMismatchException;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmarks of the storage service operations against an embedded cluster on the loopback interface. The service
+ * runs on the first member, so with more than one member most operations cross the network.
+ * <p>
+ * Run with {@code ./gradlew jmh}. Use {@code -Pjmh.threads=N} for the number of client threads; the throughput and
+ * latency percentiles are reported per benchmark and the gc profiler reports the allocation rate. Comparing the
+ * {@code inMemoryFormat} parameters shows the CPU and allocation saved by OBJECT format on the update benchmarks.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class StorageServiceBenchmark {
+    private static final int KEYS = 10000;
+    private static final AtomicInteger CLUSTERS = new AtomicInteger();
+
+    @State(Scope.Benchmark)
+    public static class ServiceState {
+        @Param({"map", "single"})
+        public String service;
+
+        @Param({"1", "2", "3"})
+        public int members;
+
+        @Param({"256", "4096"})
+        public int valueSize;
+
+        @Param({"BINARY", "OBJECT"})
+        public InMemoryFormat inMemoryFormat;
+
+        public EmbeddedCluster cluster;
+        public AbstractHazelcastMapBackedStorageService storageService;
+        public String value;
+        public String updatedValue;
+        public long expiration;
+
+        @Setup(Level.Trial)
+        public void setUp() throws ComponentInitializationException, IOException {
+            this.cluster = new EmbeddedCluster("benchmark-" + CLUSTERS.incrementAndGet(), this.members);
+            this.storageService = createStorageService(this.service, this.cluster.getMember(0));
+            this.storageService.setId("benchmark");
+            ContextMapSettings settings = new ContextMapSettings();
+            settings.setInMemoryFormat(this.inMemoryFormat);
+            Map<String, ContextMapSettings> contextMapSettings = new HashMap<>();
+            for (String context : new String[]{"benchmark", "benchmark-create", "benchmark-delete"}) {
+                contextMapSettings.put(context, settings);
+            }
+            this.storageService.setContextMapSettings(contextMapSettings);
+            this.storageService.initialize();
+
+            this.value = randomValue(this.valueSize);
+            this.updatedValue = randomValue(this.valueSize);
+            this.expiration = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+            for (int i = 0; i < KEYS; i++) {
+                this.storageService.create("benchmark", Integer.toString(i), this.value, this.expiration);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            this.storageService.destroy();
+            this.cluster.close();
+        }
+    }
+
+    static AbstractHazelcastMapBackedStorageService createStorageService(String service, HazelcastInstance member) {
+        if ("single".equals(service)) {
+            return new SingleHazelcastMapBackedStorageService("benchmark", member);
+        }
+        return new HazelcastMapBackedStorageService(member);
+    }
+
+    static String randomValue(int size) {
+        StringBuilder value = new StringBuilder(size);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < size; i++) {
+            value.append((char) ('a' + random.nextInt(26)));
+        }
+        return value.toString();
+    }
+
+    @State(Scope.Thread)
+    public static class KeyState {
+        private static final AtomicInteger THREADS = new AtomicInteger();
+        private final String prefix = "t" + THREADS.incrementAndGet() + "-";
+        private long sequence;
+
+        /**
+         * A key of the prepopulated set.
+         */
+        public String existingKey() {
+            return Integer.toString(ThreadLocalRandom.current().nextInt(KEYS));
+        }
+
+        /**
+         * A key that was never used before.
+         */
+        public String newKey() {
+            return this.prefix + this.sequence++;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class DeleteState {
+        public String key;
+
+        @Setup(Level.Invocation)
+        public void setUp(ServiceState state, KeyState keys) throws IOException {
+            this.key = keys.newKey();
+            state.storageService.create("benchmark-delete", this.key, state.value, state.expiration);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ContextState {
+        @Param({"1000"})
+        public int contextSize;
+
+        public String context;
+
+        @Setup(Level.Invocation)
+        public void setUp(ServiceState state, KeyState keys) throws IOException {
+            this.context = keys.newKey();
+            for (int i = 0; i < this.contextSize; i++) {
+                state.storageService.create(this.context, Integer.toString(i), state.value, state.expiration);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean create(ServiceState state, KeyState keys) throws IOException {
+        return state.storageService.create("benchmark-create", keys.newKey(), state.value, state.expiration);
+    }
+
+    @Benchmark
+    public StorageRecord read(ServiceState state, KeyState keys) throws IOException {
+        return state.storageService.read("benchmark", keys.existingKey());
+    }
+
+    @Benchmark
+    public Object readWithVersion(ServiceState state, KeyState keys) throws IOException {
+        return state.storageService.read("benchmark", keys.existingKey(), 1);
+    }
+
+    @Benchmark
+    public boolean update(ServiceState state, KeyState keys) throws IOException {
+        return state.storageService.update("benchmark", keys.existingKey(), state.updatedValue, state.expiration);
+    }
+
+    @Benchmark
+    public Long updateWithVersion(ServiceState state, KeyState keys) throws IOException {
+        String key = keys.existingKey();
+        StorageRecord record = state.storageService.read("benchmark", key);
+        try {
+            return state.storageService.updateWithVersion(record.getVersion(), "benchmark", key, state.updatedValue, state.expiration);
+        } catch (VersionMismatchException e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    public boolean updateExpiration(ServiceState state, KeyState keys) throws IOException {
+        return state.storageService.updateExpiration("benchmark", keys.existingKey(), System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+    }
+
+    @Benchmark
+    public boolean delete(ServiceState state, DeleteState delete) throws IOException {
+        return state.storageService.delete("benchmark-delete", delete.key);
+    }
+
+    @Benchmark
+    public void updateContextExpiration(ServiceState state, ContextState context) throws IOException {
+        state.storageService.updateContextExpiration(context.context, System.currentTimeMillis() + TimeUnit.HOURS.toMillis(2));
+    }
+
+    @Benchmark
+    public void deleteContext(ServiceState state, ContextState context) throws IOException {
+        state.storageService.deleteContext(context.context);
+    }
+}
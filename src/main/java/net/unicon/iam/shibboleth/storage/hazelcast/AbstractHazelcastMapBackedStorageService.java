@@ -1,14 +1,33 @@
 package net.unicon.iam.shibboleth.storage.hazelcast;
 
+import com.hazelcast.config.Config;
+import com.hazelcast.config.EvictionConfig;
+import com.hazelcast.config.EvictionPolicy;
+import com.hazelcast.config.InvalidConfigurationException;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.MaxSizePolicy;
+import com.hazelcast.config.NearCacheConfig;
+import com.hazelcast.client.Client;
+import com.hazelcast.cluster.Member;
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.EntryView;
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.instance.impl.HazelcastInstanceImpl;
 import com.hazelcast.internal.serialization.SerializationService;
 import com.hazelcast.internal.serialization.impl.AbstractSerializationService;
 import com.hazelcast.map.IMap;
+import com.hazelcast.map.listener.EntryEvictedListener;
+import com.hazelcast.map.listener.EntryExpiredListener;
+import com.hazelcast.nio.serialization.HazelcastSerializationException;
+import com.hazelcast.partition.PartitionService;
+import com.hazelcast.query.Predicates;
 import com.hazelcast.spi.impl.SerializationServiceSupport;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
 import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
 import net.shibboleth.utilities.java.support.collection.Pair;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.unicon.iam.shibboleth.storage.hazelcast.metrics.StorageOperation;
+import net.unicon.iam.shibboleth.storage.hazelcast.metrics.StorageServiceMetrics;
 import org.opensaml.storage.AbstractStorageService;
 import org.opensaml.storage.MutableStorageRecord;
 import org.opensaml.storage.StorageRecord;
@@ -19,44 +38,1136 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+
+public abstract class AbstractHazelcastMapBackedStorageService extends AbstractStorageService implements AsyncStorageService {
+    /**
+     * Threshold value that disables the chunking of values.
+     */
+    public static final int NO_CHUNKING = Integer.MAX_VALUE;
+
+    /**
+     * Suffix of the name of the map holding the value chunks of the records of a map.
+     */
+    public static final String CHUNK_MAP_SUFFIX = ".chunks";
+
+    /**
+     * Suffix of the name of the map holding the secondary index of the indexed contexts of a map.
+     */
+    public static final String INDEX_MAP_SUFFIX = ".index";
 
-public abstract class AbstractHazelcastMapBackedStorageService extends AbstractStorageService {
     private static final Logger logger = LoggerFactory.getLogger(AbstractHazelcastMapBackedStorageService.class);
+    private static final int MAX_CHUNKED_READ_ATTEMPTS = 3;
+    private static final long COALESCER_SHUTDOWN_TIMEOUT = 10000;
     protected final HazelcastInstance hazelcastInstance;
+    private int compressionThreshold = MutableStorageRecordSerializer.NO_COMPRESSION;
+    private boolean legacySerializationFormat;
+    private boolean legacyKeyFormat;
+    private int valueChunkingThreshold = NO_CHUNKING;
+    private int valueChunkSize = 65536;
+    private Set<String> nearCachedContexts = Collections.emptySet();
+    private Set<String> nearCachedMapNames = Collections.emptySet();
+    private int nearCacheMaxSize = 10000;
+    private EvictionPolicy nearCacheEvictionPolicy = EvictionPolicy.LRU;
+    private int nearCacheTimeToLiveSeconds;
+    private long expirationCoalescingWindow;
+    private long expirationCoalescingFlushInterval = 1000;
+    private int expirationCoalescingMaxKeys = 100000;
+    private ExpirationCoalescer expirationCoalescer;
+    private Map<String, Integer> contextMaxEntries = Collections.emptyMap();
+    private Map<String, Integer> contextMaxHeapMegabytes = Collections.emptyMap();
+    private Map<String, EvictionConfig> evictionConfigs = Collections.emptyMap();
+    private final Map<String, UUID> entryListeners = new HashMap<>();
+    private List<ExpirationListener> expirationListeners = Collections.emptyList();
+    private Set<String> expirationEventContexts = Collections.emptySet();
+    private int expirationEventQueueSize = 10000;
+    private int expirationEventBatchSize = 500;
+    private ExpirationEventPipeline expirationEventPipeline;
+    private Map<String, IndexAttributeExtractor> indexAttributeExtractors = Collections.emptyMap();
+    private SecondaryIndex secondaryIndex;
+    private Map<String, ContextMapSettings> contextMapSettings = Collections.emptyMap();
+    private Map<String, ContextMapSettings> mapSettings = Collections.emptyMap();
+    private final ConcurrentMap<String, IMap<Object, ?>> maps = new ConcurrentHashMap<>();
+    private boolean shutdownInstanceOnDestroy = true;
+    private boolean optimisticUpdates;
+    private int optimisticUpdateMaxAttempts = 10;
+    private long optimisticUpdateMaxBackoff = 50;
+    private boolean metricsEnabled;
+    private int metricsMaxContexts = 100;
+    private StorageServiceMetrics metrics;
+
+    /**
+     * The context, key and value sizes are unlimited by default. Limits set with {@link #setContextSize(int)},
+     * {@link #setKeySize(int)} and {@link #setValueSize(int)} are enforced on writes, which fail with an
+     * {@link IOException} if they are exceeded.
+     *
+     * @param hazelcastInstance the Hazelcast instance
+     */
+    public AbstractHazelcastMapBackedStorageService(HazelcastInstance hazelcastInstance) {
+        this.hazelcastInstance = hazelcastInstance;
+
+        this.setContextSize(Integer.MAX_VALUE);
+        this.setKeySize(Integer.MAX_VALUE);
+        this.setValueSize(Integer.MAX_VALUE);
+    }
+
+    public int getCompressionThreshold() {
+        return this.compressionThreshold;
+    }
+
+    /**
+     * Set the size in bytes at which record values are compressed when serialized. The serializer is registered once
+     * per Hazelcast instance, so the threshold of the first initialized storage service applies to all services
+     * sharing the instance.
+     *
+     * @param compressionThreshold the threshold in bytes of the UTF-8 encoded value
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public boolean isLegacySerializationFormat() {
+        return this.legacySerializationFormat;
+    }
+
+    /**
+     * Write records in the format of older releases, which they can read, rather than the compact format. Set it on
+     * every member during a rolling upgrade from such a release, and unset it with a second rolling restart once no
+     * member runs it anymore. Records are not compressed while it is set. Like the compression threshold, it applies
+     * to the serializer registered by the first initialized storage service of the Hazelcast instance.
+     *
+     * @param legacySerializationFormat whether to write the format of older releases
+     */
+    public void setLegacySerializationFormat(boolean legacySerializationFormat) {
+        this.legacySerializationFormat = legacySerializationFormat;
+    }
+
+    public boolean isLegacyKeyFormat() {
+        return this.legacyKeyFormat;
+    }
+
+    /**
+     * Keep the keys of {@link SingleHazelcastMapBackedStorageService} in the Java serialization of older releases
+     * instead of the compact format of {@link CompositeKeySerializer}. Unlike records, keys are compared by their
+     * serialized form, so entries written with one format cannot be found with the other, and members using different
+     * formats cannot share a map. Set it on every member to keep the records of a cluster upgraded from such a release
+     * with rolling restarts; switching to the compact format requires a restart of the whole cluster, which loses the
+     * records that are not persisted. Like the compression threshold, it applies to the serializers registered by the
+     * first initialized storage service of the Hazelcast instance.
+     *
+     * @param legacyKeyFormat whether to keep the key format of older releases
+     */
+    public void setLegacyKeyFormat(boolean legacyKeyFormat) {
+        this.legacyKeyFormat = legacyKeyFormat;
+    }
+
+    public int getValueChunkingThreshold() {
+        return this.valueChunkingThreshold;
+    }
+
+    /**
+     * Set the number of characters above which a value is split into chunks of {@link #setValueChunkSize(int)}
+     * characters. The chunks are stored in a companion map named after the map of the context with
+     * {@value #CHUNK_MAP_SUFFIX} appended, with the same time to live as their record, and the record only holds a
+     * small header. Large values then never make a single large partition operation. Chunking is disabled by default.
+     * <p>
+     * Records with chunked values are always updated with entry processors, even with optimistic updates, because the
+     * chunks they replace must be known.
+     *
+     * @param valueChunkingThreshold the size in characters above which values are chunked
+     */
+    public void setValueChunkingThreshold(int valueChunkingThreshold) {
+        this.valueChunkingThreshold = valueChunkingThreshold;
+    }
+
+    public int getValueChunkSize() {
+        return this.valueChunkSize;
+    }
+
+    /**
+     * @param valueChunkSize the maximum number of characters of a chunk of a value
+     */
+    public void setValueChunkSize(int valueChunkSize) {
+        this.valueChunkSize = valueChunkSize;
+    }
+
+    public Set<String> getNearCachedContexts() {
+        return this.nearCachedContexts;
+    }
+
+    /**
+     * Set the contexts whose maps get a near cache on this member. Near caching suits contexts that are read far more
+     * often than written, such as consent. Cached records are invalidated when they change anywhere in the cluster
+     * and are never returned past their own expiration. Maps shared by several contexts are near cached as a whole.
+     * <p>
+     * Hazelcast batches invalidations by default, so other members may briefly see an older value. Set
+     * {@code hazelcast.map.invalidation.batch.enabled} to {@code false} if that is not acceptable.
+     * <p>
+     * Hazelcast clients configure near caches in their client configuration instead.
+     *
+     * @param nearCachedContexts the near cached contexts
+     */
+    public void setNearCachedContexts(Collection<String> nearCachedContexts) {
+        this.nearCachedContexts = nearCachedContexts != null ? new HashSet<>(nearCachedContexts) : Collections.emptySet();
+    }
+
+    public int getNearCacheMaxSize() {
+        return this.nearCacheMaxSize;
+    }
+
+    /**
+     * @param nearCacheMaxSize the maximum number of entries in each near cache
+     */
+    public void setNearCacheMaxSize(int nearCacheMaxSize) {
+        this.nearCacheMaxSize = nearCacheMaxSize;
+    }
+
+    public EvictionPolicy getNearCacheEvictionPolicy() {
+        return this.nearCacheEvictionPolicy;
+    }
+
+    /**
+     * @param nearCacheEvictionPolicy the policy used to evict entries from a full near cache, usually LRU or LFU
+     */
+    public void setNearCacheEvictionPolicy(EvictionPolicy nearCacheEvictionPolicy) {
+        this.nearCacheEvictionPolicy = nearCacheEvictionPolicy;
+    }
+
+    public int getNearCacheTimeToLiveSeconds() {
+        return this.nearCacheTimeToLiveSeconds;
+    }
+
+    /**
+     * @param nearCacheTimeToLiveSeconds the maximum time an entry stays in a near cache, {@code 0} for no limit
+     */
+    public void setNearCacheTimeToLiveSeconds(int nearCacheTimeToLiveSeconds) {
+        this.nearCacheTimeToLiveSeconds = nearCacheTimeToLiveSeconds;
+    }
+
+    public long getExpirationCoalescingWindow() {
+        return this.expirationCoalescingWindow;
+    }
+
+    /**
+     * Set the window within which expiration extensions of records recently written by this node are coalesced
+     * rather than written immediately, e.g. for session touches on every request. Deferred extensions are written in
+     * the background every flush interval, without ever letting a record expire earlier than requested, and when the
+     * service is destroyed. {@code 0}, the default, disables coalescing. A deferred extension reports success without
+     * checking that the record still exists, so an extension of a record that another node deleted within the window
+     * returns {@code true}.
+     *
+     * @param expirationCoalescingWindow the window in milliseconds
+     */
+    public void setExpirationCoalescingWindow(long expirationCoalescingWindow) {
+        this.expirationCoalescingWindow = expirationCoalescingWindow;
+    }
+
+    public long getExpirationCoalescingFlushInterval() {
+        return this.expirationCoalescingFlushInterval;
+    }
+
+    /**
+     * @param expirationCoalescingFlushInterval the interval in milliseconds at which deferred extensions are written
+     */
+    public void setExpirationCoalescingFlushInterval(long expirationCoalescingFlushInterval) {
+        this.expirationCoalescingFlushInterval = expirationCoalescingFlushInterval;
+    }
+
+    public int getExpirationCoalescingMaxKeys() {
+        return this.expirationCoalescingMaxKeys;
+    }
+
+    /**
+     * @param expirationCoalescingMaxKeys the maximum number of keys tracked for coalescing, bounding its memory use
+     */
+    public void setExpirationCoalescingMaxKeys(int expirationCoalescingMaxKeys) {
+        this.expirationCoalescingMaxKeys = expirationCoalescingMaxKeys;
+    }
+
+    public Map<String, Integer> getContextMaxEntries() {
+        return this.contextMaxEntries;
+    }
+
+    /**
+     * Set the maximum number of entries per member of contexts whose size must be bounded, such as the replay cache.
+     * When a context is full, the entries closest to their expiration are evicted first. Limits of contexts stored in
+     * the same map add up to the limit of the map.
+     *
+     * @param contextMaxEntries the maximum number of entries per member by context
+     */
+    public void setContextMaxEntries(Map<String, Integer> contextMaxEntries) {
+        this.contextMaxEntries = contextMaxEntries != null ? new HashMap<>(contextMaxEntries) : Collections.emptyMap();
+    }
+
+    public Map<String, Integer> getContextMaxHeapMegabytes() {
+        return this.contextMaxHeapMegabytes;
+    }
+
+    /**
+     * Set the maximum heap in megabytes per member used by the entries of contexts whose size must be bounded. This
+     * takes precedence over {@link #setContextMaxEntries(Map)}, as Hazelcast limits a map either by entries or by heap.
+     *
+     * @param contextMaxHeapMegabytes the maximum heap per member in megabytes by context
+     */
+    public void setContextMaxHeapMegabytes(Map<String, Integer> contextMaxHeapMegabytes) {
+        this.contextMaxHeapMegabytes = contextMaxHeapMegabytes != null ? new HashMap<>(contextMaxHeapMegabytes) : Collections.emptyMap();
+    }
+
+    public List<ExpirationListener> getExpirationListeners() {
+        return this.expirationListeners;
+    }
+
+    /**
+     * Set the callbacks for records of the {@link #setExpirationEventContexts(Collection) expiration event contexts}
+     * that Hazelcast removed because they expired or were evicted. Every member running the service reports the
+     * removals of the records it owns, so each removal is reported once in the cluster as long as every member runs
+     * the service. Hazelcast clients receive no removals.
+     *
+     * @param expirationListeners the callbacks
+     */
+    public void setExpirationListeners(List<ExpirationListener> expirationListeners) {
+        this.expirationListeners = expirationListeners != null ? new ArrayList<>(expirationListeners) : Collections.emptyList();
+    }
+
+    public Set<String> getExpirationEventContexts() {
+        return this.expirationEventContexts;
+    }
+
+    /**
+     * Set the contexts whose expired and evicted records are counted in the metrics and reported to the
+     * {@link #setExpirationListeners(List) expiration listeners}. Removals are reported without the record value.
+     *
+     * @param expirationEventContexts the contexts
+     */
+    public void setExpirationEventContexts(Collection<String> expirationEventContexts) {
+        this.expirationEventContexts = expirationEventContexts != null ? new HashSet<>(expirationEventContexts) : Collections.emptySet();
+    }
+
+    public int getExpirationEventQueueSize() {
+        return this.expirationEventQueueSize;
+    }
+
+    /**
+     * @param expirationEventQueueSize the maximum number of removals waiting for the listeners, further removals are
+     *                                 dropped and counted
+     */
+    public void setExpirationEventQueueSize(int expirationEventQueueSize) {
+        this.expirationEventQueueSize = expirationEventQueueSize;
+    }
+
+    public int getExpirationEventBatchSize() {
+        return this.expirationEventBatchSize;
+    }
+
+    /**
+     * @param expirationEventBatchSize the maximum number of removals passed to the listeners at once
+     */
+    public void setExpirationEventBatchSize(int expirationEventBatchSize) {
+        this.expirationEventBatchSize = expirationEventBatchSize;
+    }
+
+    /**
+     * @return the number of removals dropped because the listeners could not keep up
+     */
+    public long getDroppedExpirationEvents() {
+        ExpirationEventPipeline pipeline = this.expirationEventPipeline;
+        return pipeline != null ? pipeline.getDropped() : 0;
+    }
+
+    public Map<String, IndexAttributeExtractor> getIndexAttributeExtractors() {
+        return this.indexAttributeExtractors;
+    }
+
+    /**
+     * Index the records of the given contexts by an attribute extracted from their values, e.g. the principal of a
+     * session, so that {@link #getIndexedKeys(String, String)} and {@link #deleteIndexed(String, String)} find all
+     * records with an attribute without a scan of the context. The keys of the records with an attribute are kept in
+     * a single entry of the companion map named after the map with {@value #INDEX_MAP_SUFFIX}, so a lookup reads one
+     * partition.
+     * <p>
+     * A key is added before its record is created or its value updated, so the index never misses a record, and is
+     * removed after the record is deleted, expires or is evicted, unless a concurrent write added it again. Keys left
+     * behind by failed or concurrent writes, by value updates that change the attribute and by deleted contexts are
+     * removed by the next lookup, once they have been in the index for a grace period of a minute. The index is
+     * maintained by a {@link SecondaryIndex}. The {@link ReplayCacheStorageService} does not store values and rejects
+     * indexes.
+     *
+     * @param indexAttributeExtractors the extractor of the index attribute by context
+     */
+    public void setIndexAttributeExtractors(Map<String, IndexAttributeExtractor> indexAttributeExtractors) {
+        this.indexAttributeExtractors = indexAttributeExtractors != null ? new HashMap<>(indexAttributeExtractors) : Collections.emptyMap();
+    }
+
+    public Map<String, ContextMapSettings> getContextMapSettings() {
+        return this.contextMapSettings;
+    }
+
+    /**
+     * Set the backups, in-memory format and backup reads of the maps holding the given contexts, e.g. to tune sessions
+     * for latency and consent for durability. Contexts stored in the same map must have the same settings.
+     *
+     * @param contextMapSettings the map settings by context
+     */
+    public void setContextMapSettings(Map<String, ContextMapSettings> contextMapSettings) {
+        this.contextMapSettings = contextMapSettings != null ? new HashMap<>(contextMapSettings) : Collections.emptyMap();
+    }
+
+    public boolean isShutdownInstanceOnDestroy() {
+        return this.shutdownInstanceOnDestroy;
+    }
+
+    /**
+     * Set whether destroying the service shuts down its Hazelcast instance. Set this to {@code false} when the instance
+     * is shared by several storage services or managed elsewhere, e.g. a client with a Spring destroy method.
+     *
+     * @param shutdownInstanceOnDestroy whether to shut down the instance, {@code true} by default
+     */
+    public void setShutdownInstanceOnDestroy(boolean shutdownInstanceOnDestroy) {
+        this.shutdownInstanceOnDestroy = shutdownInstanceOnDestroy;
+    }
+
+    public boolean isOptimisticUpdates() {
+        return this.optimisticUpdates;
+    }
+
+    /**
+     * Set whether updates read the record and commit the new record with a compare-and-set
+     * {@link IMap#replace(Object, Object, Object)} instead of running an entry processor on the member that owns the
+     * record. An update that loses to a concurrent update of the same record is retried after a random backoff that
+     * grows with every attempt. Conflicts are counted in the metrics. The time to live is set with a separate call
+     * after the replace. Optimistic updates block the calling thread, including those started through the
+     * asynchronous methods.
+     *
+     * @param optimisticUpdates whether to use optimistic updates, {@code false} by default
+     */
+    public void setOptimisticUpdates(boolean optimisticUpdates) {
+        this.optimisticUpdates = optimisticUpdates;
+    }
+
+    public int getOptimisticUpdateMaxAttempts() {
+        return this.optimisticUpdateMaxAttempts;
+    }
+
+    /**
+     * @param optimisticUpdateMaxAttempts the number of attempts after which an optimistic update fails with an
+     *                                    {@link IOException}
+     */
+    public void setOptimisticUpdateMaxAttempts(int optimisticUpdateMaxAttempts) {
+        this.optimisticUpdateMaxAttempts = optimisticUpdateMaxAttempts;
+    }
+
+    public long getOptimisticUpdateMaxBackoff() {
+        return this.optimisticUpdateMaxBackoff;
+    }
+
+    /**
+     * @param optimisticUpdateMaxBackoff the maximum time in milliseconds to wait before retrying an optimistic update
+     */
+    public void setOptimisticUpdateMaxBackoff(long optimisticUpdateMaxBackoff) {
+        this.optimisticUpdateMaxBackoff = optimisticUpdateMaxBackoff;
+    }
+
+    public boolean isMetricsEnabled() {
+        return this.metricsEnabled;
+    }
+
+    /**
+     * Enable the collection of per operation and per context latency, error and version mismatch metrics. The metrics
+     * are registered with JMX under the id of the service and can be bound to Micrometer through
+     * {@link net.unicon.iam.shibboleth.storage.hazelcast.metrics.MicrometerStorageServiceMetrics}.
+     *
+     * @param metricsEnabled whether to collect metrics
+     */
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    public int getMetricsMaxContexts() {
+        return this.metricsMaxContexts;
+    }
+
+    /**
+     * @param metricsMaxContexts the maximum number of contexts measured individually, further contexts are measured
+     *                           together
+     */
+    public void setMetricsMaxContexts(int metricsMaxContexts) {
+        this.metricsMaxContexts = metricsMaxContexts;
+    }
+
+    /**
+     * @return the metrics of this service, or null if metrics are not enabled or the service is not initialized
+     */
+    @Nullable
+    public StorageServiceMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        setupSerialization();
+
+        if (this.metricsEnabled) {
+            this.metrics = new StorageServiceMetrics(getId(), this.metricsMaxContexts);
+            this.metrics.registerMBean();
+        }
+
+        if (isChunking() && this.valueChunkSize <= 0) {
+            throw new ComponentInitializationException("valueChunkSize must be positive");
+        }
+
+        if (this.expirationCoalescingWindow > 0) {
+            if (this.expirationCoalescingFlushInterval <= 0) {
+                throw new ComponentInitializationException("expirationCoalescingFlushInterval must be positive");
+            }
+            this.expirationCoalescer = new ExpirationCoalescer(getId(), this::extendExpirationAsync,
+                    this.expirationCoalescingWindow, this.expirationCoalescingFlushInterval, this.expirationCoalescingMaxKeys);
+        }
+
+        Set<String> mapNames = new HashSet<>();
+        for (String context : this.nearCachedContexts) {
+            mapNames.add(getMapName(context));
+        }
+        this.nearCachedMapNames = mapNames;
+        this.evictionConfigs = getEvictionConfigs();
+        this.mapSettings = getMapSettings();
+
+        for (String mapName : getInitialMapNames()) {
+            configureMap(mapName, mapConfig -> customizeMapConfig(mapName, mapConfig));
+        }
+
+        this.secondaryIndex = new SecondaryIndex(this, this.indexAttributeExtractors);
+        registerEntryListeners();
+    }
+
+    /**
+     * Register the local listener counting and reporting removals on the maps holding contexts with a maximum size,
+     * with expiration events or with an index. The values of removed records are only requested for the maps holding
+     * indexed contexts.
+     */
+    private void registerEntryListeners() {
+        Set<String> mapNames = new HashSet<>();
+        for (String context : this.expirationEventContexts) {
+            mapNames.add(getMapName(context));
+        }
+        if (!mapNames.isEmpty() && isClient()) {
+            logger.warn("Hazelcast clients receive no expiration events, they are reported by the members of the cluster running the storage service");
+            return;
+        }
+        if (!this.expirationListeners.isEmpty() && !mapNames.isEmpty()) {
+            this.expirationEventPipeline = new ExpirationEventPipeline(getId(), this.expirationListeners,
+                    this.expirationEventQueueSize, this.expirationEventBatchSize);
+        }
+        if (this.metrics != null && !isClient()) {
+            mapNames.addAll(this.evictionConfigs.keySet());
+        }
+        // clients leave the removal of expired keys from the index to the members, or to the next lookup
+        Set<String> indexedMapNames = new HashSet<>();
+        if (!isClient()) {
+            for (String context : this.indexAttributeExtractors.keySet()) {
+                indexedMapNames.add(getMapName(context));
+            }
+            mapNames.addAll(indexedMapNames);
+        }
+        for (String mapName : mapNames) {
+            UUID registration = this.hazelcastInstance.<Object, StorageRecord>getMap(mapName)
+                    .addLocalEntryListener(new RemovalListener(mapName), Predicates.alwaysTrue(), indexedMapNames.contains(mapName));
+            this.entryListeners.put(mapName, registration);
+        }
+    }
+
+    /**
+     * Counts the records of a map removed by Hazelcast on this member and queues them for the expiration listeners.
+     */
+    private class RemovalListener implements EntryExpiredListener<Object, StorageRecord>, EntryEvictedListener<Object, StorageRecord> {
+        private final String mapName;
+
+        RemovalListener(String mapName) {
+            this.mapName = mapName;
+        }
+
+        @Override
+        public void entryExpired(EntryEvent<Object, StorageRecord> event) {
+            removed(event.getKey(), event.getOldValue(), ExpirationEvent.Cause.EXPIRED);
+        }
+
+        @Override
+        public void entryEvicted(EntryEvent<Object, StorageRecord> event) {
+            removed(event.getKey(), event.getOldValue(), ExpirationEvent.Cause.EVICTED);
+        }
+
+        private void removed(Object mapKey, @Nullable StorageRecord storageRecord, ExpirationEvent.Cause cause) {
+            String context = getContext(this.mapName, mapKey);
+            String key = getStorageKey(mapKey);
+            if (storageRecord != null && key != null) {
+                AbstractHazelcastMapBackedStorageService.this.secondaryIndex.removeExpired(context, key, storageRecord);
+            }
+            StorageServiceMetrics metrics = AbstractHazelcastMapBackedStorageService.this.metrics;
+            if (metrics != null) {
+                if (cause == ExpirationEvent.Cause.EVICTED) {
+                    metrics.recordEviction(context);
+                } else {
+                    metrics.recordExpiration(context);
+                }
+            }
+            ExpirationEventPipeline pipeline = AbstractHazelcastMapBackedStorageService.this.expirationEventPipeline;
+            if (pipeline != null && AbstractHazelcastMapBackedStorageService.this.expirationEventContexts.contains(context)) {
+                pipeline.offer(new ExpirationEvent(context, getStorageKey(mapKey), cause));
+            }
+        }
+    }
+
+    /**
+     * @return the eviction configuration of each map holding contexts with a maximum size
+     */
+    private Map<String, EvictionConfig> getEvictionConfigs() {
+        Map<String, Integer> maxEntries = new HashMap<>();
+        Map<String, Integer> maxHeap = new HashMap<>();
+        this.contextMaxEntries.forEach((context, size) -> maxEntries.merge(getMapName(context), size, Integer::sum));
+        this.contextMaxHeapMegabytes.forEach((context, size) -> maxHeap.merge(getMapName(context), size, Integer::sum));
+
+        Map<String, EvictionConfig> result = new HashMap<>();
+        for (Map.Entry<String, Integer> entry : maxHeap.entrySet()) {
+            if (maxEntries.remove(entry.getKey()) != null) {
+                logger.warn("Both a maximum number of entries and a maximum heap are set for map {}, only the heap is limited", entry.getKey());
+            }
+            result.put(entry.getKey(), newEvictionConfig(MaxSizePolicy.USED_HEAP_SIZE, entry.getValue()));
+        }
+        for (Map.Entry<String, Integer> entry : maxEntries.entrySet()) {
+            result.put(entry.getKey(), newEvictionConfig(MaxSizePolicy.PER_NODE, entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * @return the settings of each map holding contexts with map settings
+     */
+    private Map<String, ContextMapSettings> getMapSettings() throws ComponentInitializationException {
+        Map<String, ContextMapSettings> result = new HashMap<>();
+        for (Map.Entry<String, ContextMapSettings> entry : this.contextMapSettings.entrySet()) {
+            String mapName = getMapName(entry.getKey());
+            ContextMapSettings previous = result.putIfAbsent(mapName, entry.getValue());
+            if (previous != null && !previous.equals(entry.getValue())) {
+                throw new ComponentInitializationException("Contexts stored in map " + mapName + " have different map settings");
+            }
+        }
+        return result;
+    }
+
+    private static EvictionConfig newEvictionConfig(MaxSizePolicy maxSizePolicy, int size) {
+        // the comparator replaces the eviction policy, which must be left unset
+        return new EvictionConfig()
+                .setEvictionPolicy(EvictionPolicy.NONE)
+                .setMaxSizePolicy(maxSizePolicy)
+                .setSize(size)
+                .setComparatorClassName(SoonestExpiringEvictionPolicyComparator.class.getName());
+    }
+
+    /**
+     * Get the names of the maps whose configuration is customized on initialization.
+     *
+     * @return the map names
+     */
+    protected Set<String> getInitialMapNames() {
+        Set<String> mapNames = new HashSet<>(this.nearCachedMapNames);
+        mapNames.addAll(this.evictionConfigs.keySet());
+        mapNames.addAll(this.mapSettings.keySet());
+        return mapNames;
+    }
+
+    /**
+     * Apply the settings of this service to the configuration of a map. Called once per map on initialization, before
+     * the map is first used.
+     *
+     * @param mapName   the name of the map
+     * @param mapConfig the configuration to change
+     */
+    protected void customizeMapConfig(String mapName, MapConfig mapConfig) {
+        ContextMapSettings settings = this.mapSettings.get(mapName);
+        if (settings != null) {
+            settings.applyTo(mapConfig);
+        }
+        EvictionConfig evictionConfig = this.evictionConfigs.get(mapName);
+        if (evictionConfig != null) {
+            mapConfig.setEvictionConfig(new EvictionConfig(evictionConfig));
+        }
+        if (this.nearCachedMapNames.contains(mapName)) {
+            mapConfig.setNearCacheConfig(new NearCacheConfig(mapName)
+                    .setInvalidateOnChange(true)
+                    .setTimeToLiveSeconds(this.nearCacheTimeToLiveSeconds)
+                    .setEvictionConfig(new EvictionConfig()
+                            .setEvictionPolicy(this.nearCacheEvictionPolicy)
+                            .setMaxSizePolicy(MaxSizePolicy.ENTRY_COUNT)
+                            .setSize(this.nearCacheMaxSize)));
+        }
+    }
+
+    /**
+     * Get the proxy of a map, looking it up in the Hazelcast instance only on first use.
+     *
+     * @param mapName the name of the map
+     * @param <V>     the type of the values of the map
+     * @return the map
+     */
+    @SuppressWarnings("unchecked")
+    protected <V> IMap<Object, V> getCachedMap(String mapName) {
+        IMap<Object, ?> map = this.maps.get(mapName);
+        if (map == null) {
+            map = this.maps.computeIfAbsent(mapName, this.hazelcastInstance::getMap);
+        }
+        return (IMap<Object, V>) map;
+    }
+
+    protected boolean isNearCached(String context) {
+        return !this.nearCachedMapNames.isEmpty() && this.nearCachedMapNames.contains(getMapName(context));
+    }
+
+    /**
+     * Register the serializers of the storage records and keys, unless they are configured already, e.g. with
+     * {@link HazelcastStorageSerialization}.
+     */
+    protected void setupSerialization() {
+        SerializationService serializationService;
+        if (this.hazelcastInstance instanceof HazelcastInstanceImpl) {
+            serializationService = ((HazelcastInstanceImpl) this.hazelcastInstance).getSerializationService();
+        } else if (this.hazelcastInstance instanceof SerializationServiceSupport) {
+            serializationService = ((SerializationServiceSupport) this.hazelcastInstance).getSerializationService();
+        } else {
+            serializationService = null;
+        }
+        if (serializationService == null) {
+            logger.warn("Unable to check the storage serializers of Hazelcast instance {}, configure them with HazelcastStorageSerialization", this.hazelcastInstance.getName());
+            return;
+        }
+        if (hasSerializer(serializationService, new MutableStorageRecord("", null), MutableStorageRecordSerializer.TYPE_ID)
+                && (this.legacyKeyFormat || hasSerializer(serializationService, new SingleHazelcastMapBackedStorageService.CompositeKey("", ""), CompositeKeySerializer.TYPE_ID))
+                && hasSerializer(serializationService, new ReplayCacheStorageService.ReplayCacheKey(0, 0), ReplayCacheKeySerializer.TYPE_ID)
+                && hasSerializer(serializationService, new ValueChunkKey("", "", 0, 0), ValueChunkKeySerializer.TYPE_ID)) {
+            return;
+        }
+        if (isClient()) {
+            // registering on the client only would leave the members unable to read the records
+            logger.warn("The storage serializers are not configured for Hazelcast client {}, add them to the client and member configurations with HazelcastStorageSerialization", this.hazelcastInstance.getName());
+        }
+        try {
+            ((AbstractSerializationService) serializationService).register(MutableStorageRecord.class, new MutableStorageRecordSerializer(this.compressionThreshold, this.legacySerializationFormat));
+        } catch (IllegalStateException e) {
+            logger.warn("Problem registering storage record serializer", e);
+        }
+        if (!this.legacyKeyFormat) {
+            try {
+                ((AbstractSerializationService) serializationService).register(SingleHazelcastMapBackedStorageService.CompositeKey.class, new CompositeKeySerializer());
+            } catch (IllegalStateException e) {
+                logger.warn("Problem registering composite key serializer", e);
+            }
+        } else if (hasSerializer(serializationService, new SingleHazelcastMapBackedStorageService.CompositeKey("", ""), CompositeKeySerializer.TYPE_ID)) {
+            logger.warn("The legacy key format is set, but Hazelcast instance {} is configured with the compact composite key serializer", this.hazelcastInstance.getName());
+        }
+        try {
+            ((AbstractSerializationService) serializationService).register(ReplayCacheStorageService.ReplayCacheKey.class, new ReplayCacheKeySerializer());
+        } catch (IllegalStateException e) {
+            logger.warn("Problem registering replay cache key serializer", e);
+        }
+        try {
+            ((AbstractSerializationService) serializationService).register(ValueChunkKey.class, new ValueChunkKeySerializer());
+        } catch (IllegalStateException e) {
+            logger.warn("Problem registering value chunk key serializer", e);
+        }
+    }
+
+    private static boolean hasSerializer(SerializationService serializationService, Object sample, int typeId) {
+        try {
+            return serializationService.toData(sample).getType() == typeId;
+        } catch (HazelcastSerializationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return whether the Hazelcast instance is a client rather than a member of the cluster
+     */
+    protected boolean isClient() {
+        return this.hazelcastInstance.getLocalEndpoint() instanceof Client;
+    }
+
+    /**
+     * Add a dynamic configuration for the named map, starting from the configuration that currently applies to it.
+     * Nothing is added if the customizer leaves the configuration unchanged. This must happen before the map is first
+     * used on this member.
+     * <p>
+     * Clients cannot read the configuration of the cluster, so nothing is added for them and the maps must be
+     * configured on the members of the data cluster instead.
+     *
+     * @param mapName    the name of the map
+     * @param customizer the changes to apply to the configuration
+     * @return false if the configuration could not be added, e.g. because a conflicting static configuration exists
+     */
+    protected boolean configureMap(String mapName, Consumer<MapConfig> customizer) {
+        if (isClient()) {
+            logger.info("Running as a Hazelcast client, map {} must be configured on the members of the cluster", mapName);
+            return false;
+        }
+        Config config = this.hazelcastInstance.getConfig();
+        MapConfig current = config.getMapConfigOrNull(mapName);
+        MapConfig mapConfig = current != null ? new MapConfig(current) : new MapConfig();
+        mapConfig.setName(mapName);
+        customizer.accept(mapConfig);
+        if (mapConfig.equals(current)) {
+            return true;
+        }
+        try {
+            config.addMapConfig(mapConfig);
+            return true;
+        } catch (InvalidConfigurationException e) {
+            logger.warn("Unable to configure map {}, configure it in the Hazelcast configuration instead", mapName, e);
+            return false;
+        }
+    }
+
+    protected static long getSystemExpiration(Long expiration) {
+        return (expiration == null || expiration == 0) ? 0 : expiration - System.currentTimeMillis();
+    }
+
+    /**
+     * Wait for an asynchronous operation and translate its failure to the exceptions of the synchronous API.
+     */
+    protected static <T> T await(CompletionStage<T> stage) throws IOException {
+        try {
+            return stage.toCompletableFuture().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the storage operation", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof VersionMismatchException) {
+                throw new VersionMismatchWrapperException(cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Fail with a {@link VersionMismatchException} if an entry processor reported a version mismatch.
+     *
+     * @param result the result of the entry processor
+     * @return the result
+     */
+    protected static Long checkVersion(Long result) {
+        if (result != null && result == StorageRecordUpdateProcessor.VERSION_MISMATCH) {
+            throw new CompletionException(new VersionMismatchException());
+        }
+        return result;
+    }
+
+    private static boolean isExpired(StorageRecord storageRecord) {
+        return storageRecord.getExpiration() != null && storageRecord.getExpiration() <= System.currentTimeMillis();
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which an operation starts, or 0 if metrics are disabled and the time is
+     * not needed
+     */
+    protected long startNanos() {
+        return this.metrics != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record the outcome of an asynchronous operation once it completes. Without metrics the stage is returned as it
+     * is, so disabled metrics add no stage or callback to the operation.
+     */
+    private <T> CompletionStage<T> measure(StorageOperation operation, String context, long startNanos, CompletionStage<T> stage) {
+        StorageServiceMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return stage;
+        }
+        return stage.whenComplete((result, failure) -> {
+            if (failure == null) {
+                metrics.recordSuccess(operation, context, startNanos);
+                return;
+            }
+            while (failure instanceof CompletionException && failure.getCause() != null) {
+                failure = failure.getCause();
+            }
+            if (failure instanceof VersionMismatchException) {
+                metrics.recordVersionMismatch(operation, context, startNanos);
+            } else {
+                metrics.recordError(operation, context, startNanos);
+            }
+        });
+    }
+
+    /**
+     * Wait for an asynchronous operation and record its outcome. Unlike {@link #measure} this does not allocate.
+     */
+    private <T> T await(StorageOperation operation, String context, long startNanos, CompletionStage<T> stage) throws IOException {
+        StorageServiceMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return await(stage);
+        }
+        try {
+            T result = await(stage);
+            metrics.recordSuccess(operation, context, startNanos);
+            return result;
+        } catch (VersionMismatchWrapperException e) {
+            metrics.recordVersionMismatch(operation, context, startNanos);
+            throw e;
+        } catch (IOException | RuntimeException | Error e) {
+            metrics.recordError(operation, context, startNanos);
+            throw e;
+        }
+    }
+
+    // the synchronous methods pass startNanos() before the operation so that the time to submit it is included
+
+    /**
+     * @return an exception if the context, key or value exceeds the sizes supported by this service, otherwise null
+     */
+    @Nullable
+    protected IOException checkSizes(String context, String key, @Nullable String value) {
+        if (context.length() > getContextSize()) {
+            return new IOException("Context of " + context.length() + " characters exceeds the maximum of " + getContextSize());
+        }
+        if (key.length() > getKeySize()) {
+            return new IOException("Key of " + key.length() + " characters exceeds the maximum of " + getKeySize());
+        }
+        if (value != null && value.length() > getValueSize()) {
+            return new IOException("Value of " + value.length() + " characters exceeds the maximum of " + getValueSize());
+        }
+        if (isChunking() && ValueChunks.isHeader(value)) {
+            return new IOException("Values starting with the chunk header prefix (a NUL character followed by \"chunks:\") cannot be stored when values are chunked");
+        }
+        return null;
+    }
+
+    protected static <T> CompletableFuture<T> failed(Throwable failure) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(failure);
+        return future;
+    }
+
+    /**
+     * @return whether values above the chunking threshold are split into chunks
+     */
+    protected boolean isChunking() {
+        return this.valueChunkingThreshold != NO_CHUNKING;
+    }
+
+    private boolean isChunked(@Nullable String value) {
+        return value != null && value.length() > this.valueChunkingThreshold;
+    }
+
+    /**
+     * Get the map holding the value chunks of the records of a context.
+     *
+     * @param context the context
+     * @return the map
+     */
+    protected IMap<Object, ValueChunk> getChunkMap(String context) {
+        return getCachedMap(getMapName(context) + CHUNK_MAP_SUFFIX);
+    }
+
+    /**
+     * @return the time to live in milliseconds of the chunks of a record with the given expiration, 0 for none
+     */
+    static long getChunkTimeToLive(Long expiration) {
+        return (expiration == null || expiration == 0) ? 0 : Math.max(1, expiration - System.currentTimeMillis());
+    }
+
+    /**
+     * Write the chunks of a value with the time to live of its record, completing with the header to store as the
+     * value of the record. Chunks already written are removed if any write fails.
+     */
+    private CompletableFuture<String> writeChunks(String context, String key, String value, Long expiration) {
+        long token = ThreadLocalRandom.current().nextLong();
+        List<String> chunks = ValueChunks.split(value, this.valueChunkSize);
+        String header = ValueChunks.header(token, chunks.size());
+        IMap<Object, ValueChunk> chunkMap = getChunkMap(context);
+        long timeToLive = getChunkTimeToLive(expiration);
+        CompletableFuture<?>[] writes = new CompletableFuture[chunks.size()];
+        for (int i = 0; i < chunks.size(); i++) {
+            writes[i] = chunkMap.setAsync(new ValueChunkKey(context, key, token, i), new ValueChunk(chunks.get(i), expiration), timeToLive, TimeUnit.MILLISECONDS).toCompletableFuture();
+        }
+        return CompletableFuture.allOf(writes)
+                .handle((ignored, failure) -> {
+                    if (failure != null) {
+                        deleteChunks(context, key, header);
+                        throw failure instanceof CompletionException ? (CompletionException) failure : new CompletionException(failure);
+                    }
+                    return header;
+                });
+    }
+
+    /**
+     * Remove the chunks described by a header, if any.
+     */
+    private CompletionStage<Void> deleteChunks(String context, String key, @Nullable String header) {
+        return processChunks(context, key, header, new ValueChunkProcessor(null, true));
+    }
 
-    public AbstractHazelcastMapBackedStorageService(HazelcastInstance hazelcastInstance) {
-        this.hazelcastInstance = hazelcastInstance;
+    /**
+     * Set the time to live of the chunks described by a header, if any, to the expiration of their record.
+     */
+    private CompletionStage<Void> updateChunkExpiration(String context, String key, @Nullable String header, Long expiration) {
+        return processChunks(context, key, header, new ValueChunkProcessor(expiration, false));
+    }
 
-        setupSerialization();
+    private CompletionStage<Void> processChunks(String context, String key, @Nullable String header, ValueChunkProcessor processor) {
+        if (header == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Set<Object> chunkKeys = new HashSet<>(ValueChunks.keys(context, key, header));
+        return getChunkMap(context).submitToKeys(chunkKeys, processor).thenApply(ignored -> null);
+    }
 
-        this.setContextSize(Integer.MAX_VALUE);
-        this.setKeySize(Integer.MAX_VALUE);
-        this.setValueSize(Integer.MAX_VALUE);
+    /**
+     * Replace the header value of a record with its chunks, which are read in parallel. If a chunk is missing, the
+     * record was replaced or removed while the chunks were read, so the record is read again.
+     */
+    private CompletionStage<StorageRecord> readChunks(String context, String key, @Nullable StorageRecord storageRecord, int attempt) {
+        if (storageRecord == null || !ValueChunks.isHeader(storageRecord.getValue())) {
+            return CompletableFuture.completedFuture(storageRecord);
+        }
+        IMap<Object, ValueChunk> chunkMap = getChunkMap(context);
+        List<CompletableFuture<ValueChunk>> reads = new ArrayList<>();
+        for (ValueChunkKey chunkKey : ValueChunks.keys(context, key, storageRecord.getValue())) {
+            reads.add(chunkMap.getAsync(chunkKey).toCompletableFuture());
+        }
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture[0])).thenCompose(ignored -> {
+            StringBuilder value = new StringBuilder();
+            for (CompletableFuture<ValueChunk> read : reads) {
+                ValueChunk chunk = read.join();
+                if (chunk == null) {
+                    if (attempt >= MAX_CHUNKED_READ_ATTEMPTS) {
+                        return failed(new IOException("Chunks of the value of key " + key + " in context " + context + " are missing"));
+                    }
+                    return getMap(context, key).getAsync(getKey(context, key))
+                            .thenCompose(current -> readChunks(context, key, current == null || isExpired(current) ? null : current, attempt + 1));
+                }
+                value.append(chunk.getValue());
+            }
+            return CompletableFuture.completedFuture(new VersionMutableStorageRecord(value.toString(), storageRecord.getExpiration(), storageRecord.getVersion()));
+        });
     }
 
-    protected void setupSerialization() {
-        // set up the serializer for the storage record if not already configured
-        SerializationService serializationService;
-        if (this.hazelcastInstance instanceof HazelcastInstanceImpl) {
-            serializationService = ((HazelcastInstanceImpl) this.hazelcastInstance).getSerializationService();
-        } else if (this.hazelcastInstance instanceof SerializationServiceSupport) {
-            serializationService = ((SerializationServiceSupport) this.hazelcastInstance).getSerializationService();
-        } else {
-            serializationService = null;
+    /**
+     * Replace the header values of records read together with their chunks, which are fetched with a single
+     * {@link IMap#getAll(Set)}. Records whose chunks are missing are read again one by one.
+     */
+    private void readChunks(String context, Map<String, StorageRecord> records) throws IOException {
+        Map<String, List<ValueChunkKey>> chunkKeysByKey = new HashMap<>();
+        Set<Object> chunkKeys = new HashSet<>();
+        for (Map.Entry<String, StorageRecord> entry : records.entrySet()) {
+            if (ValueChunks.isHeader(entry.getValue().getValue())) {
+                List<ValueChunkKey> keys = ValueChunks.keys(context, entry.getKey(), entry.getValue().getValue());
+                chunkKeysByKey.put(entry.getKey(), keys);
+                chunkKeys.addAll(keys);
+            }
         }
-        if (serializationService != null) {
-            try {
-                ((AbstractSerializationService) serializationService).register(MutableStorageRecord.class, new MutableStorageRecordSerializer());
-            } catch (IllegalStateException e) {
-                logger.warn("Problem registering storage record serializer", e);
+        if (chunkKeys.isEmpty()) {
+            return;
+        }
+        Map<Object, ValueChunk> chunks = getChunkMap(context).getAll(chunkKeys);
+        for (Map.Entry<String, List<ValueChunkKey>> entry : chunkKeysByKey.entrySet()) {
+            StringBuilder value = new StringBuilder();
+            for (ValueChunkKey chunkKey : entry.getValue()) {
+                ValueChunk chunk = chunks.get(chunkKey);
+                if (chunk == null) {
+                    value = null;
+                    break;
+                }
+                value.append(chunk.getValue());
+            }
+            StorageRecord header = records.get(entry.getKey());
+            StorageRecord storageRecord = value != null
+                    ? new VersionMutableStorageRecord(value.toString(), header.getExpiration(), header.getVersion())
+                    : await(doReadAsync(context, entry.getKey()));
+            if (storageRecord != null) {
+                records.put(entry.getKey(), storageRecord);
+            } else {
+                records.remove(entry.getKey());
             }
         }
     }
 
-    protected long getSystemExpiration(Long expiration) {
-        return (expiration == null || expiration == 0) ? 0 : expiration - System.currentTimeMillis();
+    /**
+     * Get the map holding the secondary index of the indexed contexts of a map. Its keys are composite keys of the
+     * context and an index attribute.
+     *
+     * @param context the context
+     * @return the map
+     */
+    protected IMap<Object, SecondaryIndexEntry> getIndexMap(String context) {
+        return getCachedMap(getMapName(context) + INDEX_MAP_SUFFIX);
+    }
+
+    /**
+     * Create a record. The {@code do} methods implement the operations for the record format of the service and are
+     * measured by the public methods calling them.
+     */
+    protected CompletionStage<Boolean> doCreateAsync(String context, String key, String value, Long expiration) {
+        IOException sizeException = checkSizes(context, key, value);
+        if (sizeException != null) {
+            return failed(sizeException);
+        }
+        String attribute = this.secondaryIndex.getAttribute(context, key, value);
+        if (attribute != null) {
+            return this.secondaryIndex.add(context, attribute, Collections.singleton(key)).thenCompose(ignored -> createRecord(context, key, value, expiration));
+        }
+        return createRecord(context, key, value, expiration);
+    }
+
+    private CompletionStage<Boolean> createRecord(String context, String key, String value, Long expiration) {
+        if (isChunked(value)) {
+            IMap<Object, StorageRecord> map = getMap(context, key);
+            Object mapKey = getKey(context, key);
+            return writeChunks(context, key, value, expiration).thenCompose(header ->
+                    map.submitToKey(mapKey, new StorageRecordCreateProcessor(header, expiration)).thenCompose(created -> created
+                            ? CompletableFuture.completedFuture(true)
+                            : deleteChunks(context, key, header).thenApply(ignored -> false)));
+        }
+        return getMap(context, key).submitToKey(getKey(context, key), new StorageRecordCreateProcessor(value, expiration));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The check and the insert are a single atomic operation, so concurrent creates of the same key from several
+     * nodes have exactly one winner.
+     */
+    @Nonnull
+    @Override
+    public CompletionStage<Boolean> createAsync(@Nonnull @NotEmpty String context, @Nonnull @NotEmpty String key, @Nonnull String value, @Nullable @Positive Long expiration) {
+        return measure(StorageOperation.CREATE, context, startNanos(), doCreateAsync(context, key, value, expiration));
     }
 
     /**
@@ -64,31 +1175,70 @@ public abstract class AbstractHazelcastMapBackedStorageService extends AbstractS
      */
     @Override
     public boolean create(@Nonnull @NotEmpty String context, @Nonnull @NotEmpty String key, @Nonnull String value, @Nullable @Positive Long expiration) throws IOException {
-        IMap<Object, StorageRecord> backingMap = getMap(context, key);
-        Object ikey = getKey(context, key);
-        if (backingMap.containsKey(ikey)) {
-            return false;
-        }
-        StorageRecord storageRecord = new MutableStorageRecord(value, expiration);
-        if (expiration != null) {
-            backingMap.put(ikey, storageRecord, getSystemExpiration(expiration), TimeUnit.MILLISECONDS);
-        } else {
-            backingMap.put(ikey, storageRecord);
-        }
-        return true;
+        return await(StorageOperation.CREATE, context, startNanos(), doCreateAsync(context, key, value, expiration));
+    }
+
+    /**
+     * Read a record, completing with null if it does not exist or has expired.
+     */
+    protected CompletionStage<StorageRecord> doReadAsync(String context, String key) {
+        CompletionStage<StorageRecord> stage = getMap(context, key).getAsync(getKey(context, key))
+                .thenApply(storageRecord -> storageRecord == null || isExpired(storageRecord) ? null : storageRecord);
+        return isChunking() ? stage.thenCompose(storageRecord -> readChunks(context, key, storageRecord, 1)) : stage;
     }
 
-    private Pair<Long, StorageRecord> doRead(final String context, final String key, final Long version) {
-        IMap backingMap = getMap(context, key);
-        Object ikey = getKey(context, key);
-        if (!backingMap.containsKey(ikey)) {
-            return new Pair<>();
+    /**
+     * Read a record if its version differs from the given one.
+     */
+    protected CompletionStage<Pair<Long, StorageRecord>> doReadAsync(String context, String key, long version) {
+        if (isNearCached(context)) {
+            return doReadAsync(context, key).thenApply(storageRecord -> {
+                if (storageRecord == null) {
+                    return new Pair<>();
+                }
+                if (version == storageRecord.getVersion()) {
+                    return new Pair<>(version, null);
+                }
+                return new Pair<>(storageRecord.getVersion(), storageRecord);
+            });
         }
-        StorageRecord storageRecord = (StorageRecord) backingMap.get(ikey);
-        if (version != null && version == storageRecord.getVersion()) {
-            return new Pair<>(version, null);
+        CompletionStage<Pair<Long, StorageRecord>> stage = getMap(context, key).submitToKey(getKey(context, key), new StorageRecordReadProcessor(version)).thenApply(result -> {
+            if (result == null) {
+                return new Pair<>();
+            }
+            if (result instanceof Long) {
+                return new Pair<>((Long) result, null);
+            }
+            StorageRecord storageRecord = (StorageRecord) result;
+            return isExpired(storageRecord) ? new Pair<>() : new Pair<>(storageRecord.getVersion(), storageRecord);
+        });
+        if (!isChunking()) {
+            return stage;
         }
-        return new Pair<>(storageRecord.getVersion(), storageRecord);
+        return stage.thenCompose(pair -> pair.getSecond() == null ? CompletableFuture.completedFuture(pair)
+                : readChunks(context, key, pair.getSecond(), 1).thenApply(storageRecord ->
+                        storageRecord == null ? new Pair<>() : new Pair<>(storageRecord.getVersion(), storageRecord)));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Nonnull
+    @Override
+    public CompletionStage<StorageRecord> readAsync(@Nonnull @NotEmpty String context, @Nonnull @NotEmpty String key) {
+        return measure(StorageOperation.READ, context, startNanos(), doReadAsync(context, key));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The version is compared on the member that owns the record, or against the near cached copy, so an unchanged
+     * value is not transferred.
+     */
+    @Nonnull
+    @Override
+    public CompletionStage<Pair<Long, StorageRecord>> readAsync(@Nonnull @NotEmpty String context, @Nonnull @NotEmpty String key, @Positive long version) {
+        return measure(StorageOperation.READ_WITH_VERSION, context, startNanos(), doReadAsync(context, key, version));
     }
 
     /**
@@ -97,7 +1247,7 @@ public abstract class AbstractHazelcastMapBackedStorageService extends AbstractS
     @Nullable
     @Override
     public StorageRecord read(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key) throws IOException {
-        return doRead(context, key, null).getSecond();
+        return await(StorageOperation.READ, context, startNanos(), doReadAsync(context, key));
     }
 
     /**
@@ -106,33 +1256,142 @@ public abstract class AbstractHazelcastMapBackedStorageService extends AbstractS
     @Nonnull
     @Override
     public Pair<Long, StorageRecord> read(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key, @Positive final long version) throws IOException {
-        return doRead(context, key, version);
+        return await(StorageOperation.READ_WITH_VERSION, context, startNanos(), doReadAsync(context, key, version));
     }
 
-    private Long doUpdate(final Long version, final String context, final String key, final String value, final Long expiration) throws IOException {
-        final Lock lock = hazelcastInstance.getCPSubsystem().getLock(context + ":" + key);
-        lock.lock();
-        try {
-            MutableStorageRecord record = (MutableStorageRecord) this.doRead(context, key, null).getSecond();
-            if (record == null) {
-                return null;
+    /**
+     * Update the value, if not null, and the expiration of a record, optionally only if it has the given version.
+     * Completes with the new version, or null if the record does not exist.
+     */
+    protected CompletionStage<Long> doUpdateAsync(final Long version, final String context, final String key, final String value, final Long expiration) {
+        IOException sizeException = checkSizes(context, key, value);
+        if (sizeException != null) {
+            return failed(sizeException);
+        }
+        String attribute = this.secondaryIndex.getAttribute(context, key, value);
+        if (attribute == null) {
+            return updateRecord(version, context, key, value, expiration);
+        }
+        CompletionStage<Object> indexed = this.secondaryIndex.add(context, attribute, Collections.singleton(key));
+        if (this.optimisticUpdates && !isChunking()) {
+            // optimistic updates block, so they must not run on the thread completing the index update
+            try {
+                await(indexed);
+            } catch (IOException | RuntimeException e) {
+                return failed(e);
             }
+            return updateRecord(version, context, key, value, expiration);
+        }
+        return indexed.thenCompose(ignored -> updateRecord(version, context, key, value, expiration));
+    }
 
-            if (version != null && version != record.getVersion()) {
-                throw new VersionMismatchWrapperException(new VersionMismatchException());
-            }
+    private CompletionStage<Long> updateRecord(Long version, String context, String key, String value, Long expiration) {
+        CompletionStage<Long> stage;
+        if (isChunking()) {
+            stage = chunkedUpdate(version, context, key, value, expiration);
+        } else if (this.optimisticUpdates) {
+            stage = optimisticUpdate(version, context, key, value, expiration);
+        } else {
+            stage = getMap(context, key).submitToKey(getKey(context, key), new StorageRecordUpdateProcessor(version, value, expiration))
+                    .thenApply(AbstractHazelcastMapBackedStorageService::checkVersion);
+        }
+        ExpirationCoalescer coalescer = this.expirationCoalescer;
+        if (coalescer != null) {
+            // a pending extension must not be written after, and undo, an expiration written now
+            coalescer.forget(context, key);
+            stage = stage.thenApply(result -> {
+                if (result != null) {
+                    coalescer.written(context, key, expiration);
+                }
+                return result;
+            });
+        }
+        return stage;
+    }
+
+    /**
+     * Update a record whose previous or new value may be chunked. New chunks are written before the record and the
+     * chunks it replaces are removed after it, so readers always find the chunks of the header they read. An update
+     * of only the expiration also updates the time to live of the chunks.
+     */
+    private CompletionStage<Long> chunkedUpdate(Long version, String context, String key, String value, Long expiration) {
+        boolean chunked = isChunked(value);
+        CompletionStage<String> storedValue = chunked ? writeChunks(context, key, value, expiration) : CompletableFuture.completedFuture(value);
+        IMap<Object, StorageRecord> map = getMap(context, key);
+        Object mapKey = getKey(context, key);
+        return storedValue.thenCompose(stored -> map.submitToKey(mapKey, new ChunkedRecordProcessor(new StorageRecordUpdateProcessor(version, stored, expiration)))
+                .thenCompose(result -> {
+                    Long updated = result.getResult();
+                    CompletionStage<Void> chunks;
+                    if (updated == null || updated == StorageRecordUpdateProcessor.VERSION_MISMATCH) {
+                        chunks = deleteChunks(context, key, chunked ? stored : null);
+                    } else if (value != null) {
+                        chunks = deleteChunks(context, key, result.getPreviousHeader());
+                    } else {
+                        chunks = updateChunkExpiration(context, key, result.getPreviousHeader(), result.getExpiration());
+                    }
+                    return chunks.thenApply(ignored -> checkVersion(updated));
+                }));
+    }
 
-            if (value != null) {
-                record.setValue(value);
-                record.incrementVersion();
+    /**
+     * Update a record with a compare-and-set, retrying on conflicts. The record is read past the near cache, which may
+     * be stale, and the new record is written together with its time to live by a {@link StorageRecordReplaceProcessor}.
+     * Completes like {@link #doUpdateAsync(Long, String, String, String, Long)}, but only after the update is done.
+     */
+    private CompletableFuture<Long> optimisticUpdate(Long version, String context, String key, String value, Long expiration) {
+        StorageOperation operation = version != null ? StorageOperation.UPDATE_WITH_VERSION
+                : value != null ? StorageOperation.UPDATE : StorageOperation.UPDATE_EXPIRATION;
+        IMap<Object, StorageRecord> map = getMap(context, key);
+        Object mapKey = getKey(context, key);
+        try {
+            for (int attempt = 1; ; attempt++) {
+                EntryView<Object, StorageRecord> entryView = map.getEntryView(mapKey);
+                StorageRecord current = entryView != null ? entryView.getValue() : null;
+                if (current == null) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                if (version != null && version != current.getVersion()) {
+                    return failed(new VersionMismatchException());
+                }
+                VersionMutableStorageRecord updated = new VersionMutableStorageRecord(value != null ? value : current.getValue(), expiration,
+                        value != null ? current.getVersion() + 1 : current.getVersion());
+                if (map.executeOnKey(mapKey, new StorageRecordReplaceProcessor(current, updated))) {
+                    return CompletableFuture.completedFuture(updated.getVersion());
+                }
+                if (this.metrics != null) {
+                    this.metrics.recordConflict(operation, context);
+                }
+                if (attempt >= this.optimisticUpdateMaxAttempts) {
+                    return failed(new IOException("Record was changed concurrently in " + attempt + " attempts to update it"));
+                }
+                long backoff = Math.min(this.optimisticUpdateMaxBackoff, 1L << Math.min(attempt - 1, 20));
+                Thread.sleep(ThreadLocalRandom.current().nextLong(backoff + 1));
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failed(new IOException("Interrupted while waiting to retry the storage operation", e));
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+    }
 
-            record.setExpiration(expiration);
-            this.getMap(context, key).put(getKey(context, key), record, getSystemExpiration(record.getExpiration()), TimeUnit.MILLISECONDS);
-            return record.getVersion();
-        } finally {
-            lock.unlock();
+    private CompletionStage<Long> extendExpirationAsync(final String context, final String key, final long expiration) {
+        if (isChunking()) {
+            return getMap(context, key).submitToKey(getKey(context, key), new ChunkedRecordProcessor(new StorageRecordExtendProcessor(expiration)))
+                    .thenCompose(result -> updateChunkExpiration(context, key, result.getPreviousHeader(), result.getExpiration())
+                            .thenApply(ignored -> result.getResult()));
         }
+        return getMap(context, key).submitToKey(getKey(context, key), new StorageRecordExtendProcessor(expiration));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Nonnull
+    @Override
+    public CompletionStage<Boolean> updateAsync(@Nonnull @NotEmpty String context, @Nonnull @NotEmpty String key, @Nonnull String value, @Nullable @Positive Long expiration) {
+        return measure(StorageOperation.UPDATE, context, startNanos(), doUpdateAsync(null, context, key, value, expiration).thenApply(Objects::nonNull));
     }
 
     /**
@@ -140,7 +1399,16 @@ public abstract class AbstractHazelcastMapBackedStorageService extends AbstractS
      */
     @Override
     public boolean update(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key, @Nonnull @NotEmpty final String value, @Nullable @Positive final Long expiration) throws IOException {
-        return doUpdate(null, context, key, value, expiration) != null;
+        return await(StorageOperation.UPDATE, context, startNanos(), doUpdateAsync(null, context, key, value, expiration)) != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Nonnull
+    @Override
+    public CompletionStage<Long> updateWithVersionAsync(@Positive long version, @Nonnull @NotEmpty String context, @Nonnull @NotEmpty String key, @Nonnull String value, @Nullable @Positive Long expiration) {
+        return measure(StorageOperation.UPDATE_WITH_VERSION, context, startNanos(), doUpdateAsync(version, context, key, value, expiration));
     }
 
     /**
@@ -150,31 +1418,77 @@ public abstract class AbstractHazelcastMapBackedStorageService extends AbstractS
     @Override
     public Long updateWithVersion(@Positive long version, @Nonnull @NotEmpty String context, @Nonnull @NotEmpty String key, @Nonnull String value, @Nullable @Positive Long expiration) throws IOException, VersionMismatchException {
         try {
-            return doUpdate(version, context, key, value, expiration);
+            return await(StorageOperation.UPDATE_WITH_VERSION, context, startNanos(), doUpdateAsync(version, context, key, value, expiration));
         } catch (VersionMismatchWrapperException e) {
             throw (VersionMismatchException)e.getCause();
         }
     }
 
+    /**
+     * Update the expiration of a record, completing with false if it does not exist.
+     */
+    protected CompletionStage<Boolean> doUpdateExpirationAsync(String context, String key, Long expiration) {
+        if (this.expirationCoalescer != null && this.expirationCoalescer.defer(context, key, expiration)) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return doUpdateAsync(null, context, key, null, expiration).thenApply(Objects::nonNull);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Nonnull
+    @Override
+    public CompletionStage<Boolean> updateExpirationAsync(@Nonnull @NotEmpty String context, @Nonnull @NotEmpty String key, @Nullable @Positive Long expiration) {
+        return measure(StorageOperation.UPDATE_EXPIRATION, context, startNanos(), doUpdateExpirationAsync(context, key, expiration));
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public boolean updateExpiration(@Nonnull String context, @Nonnull String key, @Nullable Long expiration) throws IOException {
-        return doUpdate(null, context, key, null, expiration) != null;
+        return await(StorageOperation.UPDATE_EXPIRATION, context, startNanos(), doUpdateExpirationAsync(context, key, expiration));
     }
 
-    private boolean doDelete(Long version, String context, String key) throws IOException {
-        IMap backingMap = getMap(context, key);
-        Object ikey = getKey(context, key);
-        if (!backingMap.containsKey(ikey)) {
-            return false;
+    /**
+     * Delete a record, optionally only if it has the given version, completing with false if it does not exist.
+     */
+    protected CompletionStage<Boolean> doDeleteAsync(Long version, String context, String key) {
+        if (this.expirationCoalescer != null) {
+            this.expirationCoalescer.forget(context, key);
+        }
+        if (this.secondaryIndex.isIndexed(context)) {
+            // the value is read first to learn the attribute, and its index entry before the record is deleted
+            return doReadAsync(context, key)
+                    .thenCompose(storageRecord -> this.secondaryIndex.read(context, storageRecord != null
+                            ? Collections.singletonMap(key, storageRecord) : Collections.emptyMap()))
+                    .thenCompose(indexed -> deleteRecord(version, context, key).thenCompose(deleted -> deleted
+                            ? indexed.removeKeys(Collections.singleton(key)).thenApply(ignored -> true)
+                            : CompletableFuture.completedFuture(false)));
         }
-        if (version != null && ((StorageRecord) backingMap.get(ikey)).getVersion() != version) {
-            throw new VersionMismatchWrapperException(new VersionMismatchException());
+        return deleteRecord(version, context, key);
+    }
+
+    private CompletionStage<Boolean> deleteRecord(Long version, String context, String key) {
+        if (isChunking()) {
+            return getMap(context, key).submitToKey(getKey(context, key), new ChunkedRecordProcessor(new StorageRecordDeleteProcessor(version)))
+                    .thenCompose(result -> {
+                        boolean deleted = checkVersion(result.getResult()) != null;
+                        return deleteChunks(context, key, deleted ? result.getPreviousHeader() : null).thenApply(ignored -> deleted);
+                    });
         }
-        backingMap.delete(ikey);
-        return true;
+        return getMap(context, key).submitToKey(getKey(context, key), new StorageRecordDeleteProcessor(version))
+                .thenApply(result -> checkVersion(result) != null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Nonnull
+    @Override
+    public CompletionStage<Boolean> deleteAsync(@Nonnull @NotEmpty String context, @Nonnull @NotEmpty String key) {
+        return measure(StorageOperation.DELETE, context, startNanos(), doDeleteAsync(null, context, key));
     }
 
     /**
@@ -182,7 +1496,16 @@ public abstract class AbstractHazelcastMapBackedStorageService extends AbstractS
      */
     @Override
     public boolean delete(@Nonnull String context, @Nonnull String key) throws IOException {
-        return doDelete(null, context, key);
+        return await(StorageOperation.DELETE, context, startNanos(), doDeleteAsync(null, context, key));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Nonnull
+    @Override
+    public CompletionStage<Boolean> deleteWithVersionAsync(@Positive long version, @Nonnull @NotEmpty String context, @Nonnull @NotEmpty String key) {
+        return measure(StorageOperation.DELETE_WITH_VERSION, context, startNanos(), doDeleteAsync(version, context, key));
     }
 
     /**
@@ -191,16 +1514,316 @@ public abstract class AbstractHazelcastMapBackedStorageService extends AbstractS
     @Override
     public boolean deleteWithVersion(long version, @Nonnull String context, @Nonnull String key) throws IOException, VersionMismatchException {
         try {
-            return doDelete(version, context, key);
+            return await(StorageOperation.DELETE_WITH_VERSION, context, startNanos(), doDeleteAsync(version, context, key));
         } catch (VersionMismatchWrapperException e) {
             throw (VersionMismatchException)e.getCause();
         }
     }
 
+    /**
+     * Read several records of a context at once. The records are fetched with a single call per member that owns any
+     * of them, and so are the chunks of those with chunked values.
+     *
+     * @param context the context
+     * @param keys    the keys of the records
+     * @return the records that exist and have not expired, by key
+     * @throws IOException if the records could not be read
+     */
+    @Nonnull
+    public Map<String, StorageRecord> readAll(@Nonnull @NotEmpty String context, @Nonnull Collection<String> keys) throws IOException {
+        long start = startNanos();
+        try {
+            Map<String, StorageRecord> result = readRecords(context, keys);
+            recordSuccess(StorageOperation.READ_ALL, context, start);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            recordError(StorageOperation.READ_ALL, context, start);
+            throw e;
+        }
+    }
+
+    private Map<String, StorageRecord> readRecords(String context, Collection<String> keys) throws IOException {
+        Map<Object, String> mapKeys = getMapKeys(context, keys);
+        Map<String, StorageRecord> result = new HashMap<>();
+        for (Map.Entry<Object, StorageRecord> entry : getMap(context, null).getAll(mapKeys.keySet()).entrySet()) {
+            if (entry.getValue() != null && !isExpired(entry.getValue())) {
+                result.put(mapKeys.get(entry.getKey()), entry.getValue());
+            }
+        }
+        if (isChunking()) {
+            readChunks(context, result);
+        }
+        return result;
+    }
+
+    /**
+     * Create several records in a context at once, each only if no record exists for its key. The values are grouped
+     * by the member that owns them, so each member receives a single call with only its own values.
+     *
+     * @param context    the context
+     * @param values     the values of the records by key
+     * @param expiration the expiration of all records, or null for none
+     * @return whether each record was created, by key
+     * @throws IOException if the records could not be created
+     */
+    @Nonnull
+    public Map<String, Boolean> createAll(@Nonnull @NotEmpty String context, @Nonnull Map<String, String> values, @Nullable @Positive Long expiration) throws IOException {
+        long start = startNanos();
+        try {
+            for (Map.Entry<String, String> value : values.entrySet()) {
+                IOException sizeException = checkSizes(context, value.getKey(), value.getValue());
+                if (sizeException != null) {
+                    throw sizeException;
+                }
+            }
+            if (this.secondaryIndex.isIndexed(context)) {
+                await(this.secondaryIndex.addAll(context, values));
+            }
+            // values that are chunked are created one by one, in parallel with the others
+            Map<String, String> unchunked = values;
+            Map<String, CompletableFuture<Boolean>> chunkedCreates = new HashMap<>();
+            if (isChunking()) {
+                unchunked = new HashMap<>();
+                for (Map.Entry<String, String> value : values.entrySet()) {
+                    if (isChunked(value.getValue())) {
+                        chunkedCreates.put(value.getKey(), createRecord(context, value.getKey(), value.getValue(), expiration).toCompletableFuture());
+                    } else {
+                        unchunked.put(value.getKey(), value.getValue());
+                    }
+                }
+            }
+            Map<Object, String> mapKeys = getMapKeys(context, unchunked.keySet());
+            PartitionService partitionService = this.hazelcastInstance.getPartitionService();
+            Map<Member, Map<Object, String>> valuesByMember = new HashMap<>();
+            for (Map.Entry<Object, String> mapKey : mapKeys.entrySet()) {
+                Member owner = partitionService.getPartition(mapKey.getKey()).getOwner();
+                valuesByMember.computeIfAbsent(owner, member -> new HashMap<>()).put(mapKey.getKey(), unchunked.get(mapKey.getValue()));
+            }
+
+            IMap<Object, StorageRecord> map = getMap(context, null);
+            List<CompletableFuture<Map<Object, Boolean>>> futures = new ArrayList<>();
+            for (Map<Object, String> memberValues : valuesByMember.values()) {
+                futures.add(map.submitToKeys(memberValues.keySet(), new StorageRecordCreateAllProcessor(memberValues, expiration)).toCompletableFuture());
+            }
+            List<CompletableFuture<?>> all = new ArrayList<>(futures);
+            all.addAll(chunkedCreates.values());
+            await(CompletableFuture.allOf(all.toArray(new CompletableFuture[0])));
+
+            Map<String, Boolean> result = new HashMap<>();
+            for (String key : values.keySet()) {
+                result.put(key, false);
+            }
+            for (CompletableFuture<Map<Object, Boolean>> future : futures) {
+                for (Map.Entry<Object, Boolean> created : future.join().entrySet()) {
+                    result.put(mapKeys.get(created.getKey()), Boolean.TRUE.equals(created.getValue()));
+                }
+            }
+            chunkedCreates.forEach((key, created) -> result.put(key, created.join()));
+            recordSuccess(StorageOperation.CREATE_ALL, context, start);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            recordError(StorageOperation.CREATE_ALL, context, start);
+            throw e;
+        }
+    }
+
+    /**
+     * Delete several records of a context at once, with a single call per member that owns any of them.
+     *
+     * @param context the context
+     * @param keys    the keys of the records
+     * @return whether each record existed and was deleted, by key
+     * @throws IOException if the records could not be deleted
+     */
+    @Nonnull
+    public Map<String, Boolean> deleteAll(@Nonnull @NotEmpty String context, @Nonnull Collection<String> keys) throws IOException {
+        long start = startNanos();
+        try {
+            Map<Object, String> mapKeys = getMapKeys(context, keys);
+            if (this.expirationCoalescer != null) {
+                for (String key : keys) {
+                    this.expirationCoalescer.forget(context, key);
+                }
+            }
+            Map<String, Boolean> result = new HashMap<>();
+            for (String key : keys) {
+                result.put(key, false);
+            }
+            SecondaryIndex.IndexedRecords indexed = this.secondaryIndex.isIndexed(context)
+                    ? await(this.secondaryIndex.read(context, readRecords(context, keys))) : null;
+            if (isChunking()) {
+                List<CompletableFuture<Void>> chunkDeletes = new ArrayList<>();
+                for (Map.Entry<Object, ChunkedRecordProcessor.Result> deleted : getMap(context, null)
+                        .executeOnKeys(mapKeys.keySet(), new ChunkedRecordProcessor(new StorageRecordDeleteProcessor(null))).entrySet()) {
+                    String key = mapKeys.get(deleted.getKey());
+                    result.put(key, deleted.getValue().getResult() != null);
+                    chunkDeletes.add(deleteChunks(context, key, deleted.getValue().getPreviousHeader()).toCompletableFuture());
+                }
+                await(CompletableFuture.allOf(chunkDeletes.toArray(new CompletableFuture[0])));
+            } else {
+                for (Map.Entry<Object, Long> deleted : getMap(context, null).executeOnKeys(mapKeys.keySet(), new StorageRecordDeleteProcessor(null)).entrySet()) {
+                    result.put(mapKeys.get(deleted.getKey()), deleted.getValue() != null);
+                }
+            }
+            if (indexed != null) {
+                List<String> deleted = new ArrayList<>();
+                result.forEach((key, removed) -> {
+                    if (removed) {
+                        deleted.add(key);
+                    }
+                });
+                await(indexed.removeKeys(deleted));
+            }
+            recordSuccess(StorageOperation.DELETE_ALL, context, start);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            recordError(StorageOperation.DELETE_ALL, context, start);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the storage keys by the keys used in the map
+     */
+    protected Map<Object, String> getMapKeys(String context, Collection<String> keys) {
+        Map<Object, String> mapKeys = new HashMap<>();
+        for (String key : keys) {
+            mapKeys.put(getKey(context, key), key);
+        }
+        return mapKeys;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void updateContextExpiration(@Nonnull @NotEmpty String context, @Nullable Long expiration) throws IOException {
+        if (this.expirationCoalescer != null) {
+            this.expirationCoalescer.forgetContext(context);
+        }
+        long start = startNanos();
+        try {
+            doUpdateContextExpiration(context, expiration);
+            if (isChunking()) {
+                getChunkMap(context).executeOnEntries(new ValueChunkProcessor(expiration, false), Predicates.equal("__key.context", context));
+            }
+        } catch (IOException | RuntimeException e) {
+            recordError(StorageOperation.UPDATE_CONTEXT_EXPIRATION, context, start);
+            throw e;
+        }
+        recordSuccess(StorageOperation.UPDATE_CONTEXT_EXPIRATION, context, start);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void deleteContext(@Nonnull @NotEmpty String context) throws IOException {
+        if (this.expirationCoalescer != null) {
+            this.expirationCoalescer.forgetContext(context);
+        }
+        long start = startNanos();
+        try {
+            doDeleteContext(context);
+            if (isChunking()) {
+                getChunkMap(context).removeAll(Predicates.equal("__key.context", context));
+            }
+            this.secondaryIndex.deleteContext(context);
+        } catch (IOException | RuntimeException e) {
+            recordError(StorageOperation.DELETE_CONTEXT, context, start);
+            throw e;
+        }
+        recordSuccess(StorageOperation.DELETE_CONTEXT, context, start);
+    }
+
+    /**
+     * Get the keys of the records of an indexed context with the given index attribute, e.g. the keys of the sessions
+     * of a principal. The keys are read from a single entry of the index and their records read in parallel, so the
+     * cost depends on the number of records with the attribute rather than the size of the context. Keys whose
+     * records no longer exist or no longer have the attribute are removed from the index.
+     *
+     * @param context   the context
+     * @param attribute the index attribute
+     * @return the keys of the records that exist and have the attribute
+     * @throws IOException if the index or the records could not be read
+     * @see #setIndexAttributeExtractors(Map)
+     */
+    @Nonnull
+    public Set<String> getIndexedKeys(@Nonnull @NotEmpty String context, @Nonnull String attribute) throws IOException {
+        long start = startNanos();
+        try {
+            Set<String> result = this.secondaryIndex.lookup(context, attribute).getRecords().keySet();
+            recordSuccess(StorageOperation.READ_INDEXED, context, start);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            recordError(StorageOperation.READ_INDEXED, context, start);
+            throw e;
+        }
+    }
+
+    /**
+     * Delete the records of an indexed context with the given index attribute, e.g. to revoke all sessions of a
+     * principal. The records found by {@link #getIndexedKeys(String, String)} are deleted in parallel and their keys
+     * removed from the index in a single operation. A record created with the attribute while this runs may survive.
+     *
+     * @param context   the context
+     * @param attribute the index attribute
+     * @return the number of records deleted
+     * @throws IOException if the index or the records could not be read or deleted
+     * @see #setIndexAttributeExtractors(Map)
+     */
+    public int deleteIndexed(@Nonnull @NotEmpty String context, @Nonnull String attribute) throws IOException {
+        long start = startNanos();
+        try {
+            SecondaryIndex.IndexedRecords indexed = this.secondaryIndex.lookup(context, attribute);
+            Map<String, CompletableFuture<Boolean>> deletes = new HashMap<>();
+            for (String key : indexed.getRecords().keySet()) {
+                if (this.expirationCoalescer != null) {
+                    this.expirationCoalescer.forget(context, key);
+                }
+                deletes.put(key, deleteRecord(null, context, key).toCompletableFuture());
+            }
+            await(CompletableFuture.allOf(deletes.values().toArray(new CompletableFuture[0])));
+            List<String> deleted = new ArrayList<>();
+            deletes.forEach((key, delete) -> {
+                if (delete.join()) {
+                    deleted.add(key);
+                }
+            });
+            if (!deleted.isEmpty()) {
+                await(indexed.removeKeys(deleted));
+            }
+            recordSuccess(StorageOperation.DELETE_INDEXED, context, start);
+            return deleted.size();
+        } catch (IOException | RuntimeException e) {
+            recordError(StorageOperation.DELETE_INDEXED, context, start);
+            throw e;
+        }
+    }
+
+    /**
+     * Record a successful operation that was not measured by the {@code do} methods, e.g. a bulk operation.
+     */
+    protected void recordSuccess(StorageOperation operation, String context, long startNanos) {
+        if (this.metrics != null) {
+            this.metrics.recordSuccess(operation, context, startNanos);
+        }
+    }
+
+    /**
+     * Record a failed operation that was not measured by the {@code do} methods.
+     */
+    protected void recordError(StorageOperation operation, String context, long startNanos) {
+        if (this.metrics != null) {
+            this.metrics.recordError(operation, context, startNanos);
+        }
+    }
+
     /**
      * {@inheritDoc}
      * <p>
-     * The Hazelcast implementation is a noop and is handled by hazelcast
+     * The Hazelcast implementation is a noop, expired records are removed by Hazelcast. Use
+     * {@link #setExpirationEventContexts(Collection)} to count or act on their removal.
      */
     @Override
     public void reap(@Nonnull String context) throws IOException {
@@ -208,14 +1831,77 @@ public abstract class AbstractHazelcastMapBackedStorageService extends AbstractS
 
     @Override
     protected void doDestroy() {
-        this.hazelcastInstance.shutdown();
+        // the deferred extensions are written first, while the maps and the instance are still available
+        if (this.expirationCoalescer != null) {
+            this.expirationCoalescer.shutdown(COALESCER_SHUTDOWN_TIMEOUT);
+            this.expirationCoalescer = null;
+        }
+        if (!this.shutdownInstanceOnDestroy) {
+            this.entryListeners.forEach((mapName, registration) -> this.hazelcastInstance.getMap(mapName).removeEntryListener(registration));
+        }
+        this.entryListeners.clear();
+        if (this.expirationEventPipeline != null) {
+            this.expirationEventPipeline.shutdown();
+            this.expirationEventPipeline = null;
+        }
+        this.maps.clear();
+        if (this.metrics != null) {
+            this.metrics.unregisterMBean();
+            this.metrics = null;
+        }
+        if (this.shutdownInstanceOnDestroy) {
+            this.hazelcastInstance.shutdown();
+        }
         super.doDestroy();
     }
 
+    /**
+     * Update the expiration of all records in a context.
+     *
+     * @param context    the context
+     * @param expiration the new expiration, or null for none
+     * @throws IOException if the records could not be updated
+     */
+    protected abstract void doUpdateContextExpiration(String context, Long expiration) throws IOException;
+
+    /**
+     * Delete all records in a context.
+     *
+     * @param context the context
+     * @throws IOException if the records could not be deleted
+     */
+    protected abstract void doDeleteContext(String context) throws IOException;
+
     protected abstract IMap<Object, StorageRecord> getMap(String context, String key);
 
+    protected abstract String getMapName(String context);
+
     protected abstract Object getKey(String context, String key);
 
+    /**
+     * Get the context of a key of a map, the inverse of {@link #getMapName(String)} and
+     * {@link #getKey(String, String)}. By default the context is the name of the map.
+     *
+     * @param mapName the name of the map
+     * @param mapKey  the key in the map
+     * @return the context
+     */
+    protected String getContext(String mapName, Object mapKey) {
+        return mapName;
+    }
+
+    /**
+     * Get the storage key of a key of a map, the inverse of {@link #getKey(String, String)}. By default the key of
+     * the map is the storage key.
+     *
+     * @param mapKey the key in the map
+     * @return the storage key, or null if it cannot be recovered from the key of the map
+     */
+    @Nullable
+    protected String getStorageKey(Object mapKey) {
+        return mapKey instanceof String ? (String) mapKey : null;
+    }
+
     public static class VersionMismatchWrapperException extends RuntimeException {
         public VersionMismatchWrapperException(Throwable cause) {
             super(cause);
@@ -0,0 +1,70 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.collection.Pair;
+import org.opensaml.storage.StorageRecord;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Asynchronous companion to the record operations of {@link org.opensaml.storage.StorageService}. Each method starts
+ * the operation and returns without waiting for the cluster, with the same result the synchronous method would
+ * return.
+ * <p>
+ * Versioned operations complete exceptionally with a {@link org.opensaml.storage.VersionMismatchException} when the
+ * version does not match. Callers that do not need the result, such as a session activity touch, can ignore the
+ * returned stage.
+ */
+public interface AsyncStorageService {
+
+    /**
+     * @see org.opensaml.storage.StorageService#create(String, String, String, Long)
+     */
+    @Nonnull
+    CompletionStage<Boolean> createAsync(@Nonnull @NotEmpty String context, @Nonnull @NotEmpty String key, @Nonnull String value, @Nullable @Positive Long expiration);
+
+    /**
+     * @see org.opensaml.storage.StorageService#read(String, String)
+     */
+    @Nonnull
+    CompletionStage<StorageRecord> readAsync(@Nonnull @NotEmpty String context, @Nonnull @NotEmpty String key);
+
+    /**
+     * @see org.opensaml.storage.StorageService#read(String, String, long)
+     */
+    @Nonnull
+    CompletionStage<Pair<Long, StorageRecord>> readAsync(@Nonnull @NotEmpty String context, @Nonnull @NotEmpty String key, @Positive long version);
+
+    /**
+     * @see org.opensaml.storage.StorageService#update(String, String, String, Long)
+     */
+    @Nonnull
+    CompletionStage<Boolean> updateAsync(@Nonnull @NotEmpty String context, @Nonnull @NotEmpty String key, @Nonnull String value, @Nullable @Positive Long expiration);
+
+    /**
+     * @see org.opensaml.storage.StorageService#updateWithVersion(long, String, String, String, Long)
+     */
+    @Nonnull
+    CompletionStage<Long> updateWithVersionAsync(@Positive long version, @Nonnull @NotEmpty String context, @Nonnull @NotEmpty String key, @Nonnull String value, @Nullable @Positive Long expiration);
+
+    /**
+     * @see org.opensaml.storage.StorageService#updateExpiration(String, String, Long)
+     */
+    @Nonnull
+    CompletionStage<Boolean> updateExpirationAsync(@Nonnull @NotEmpty String context, @Nonnull @NotEmpty String key, @Nullable @Positive Long expiration);
+
+    /**
+     * @see org.opensaml.storage.StorageService#delete(String, String)
+     */
+    @Nonnull
+    CompletionStage<Boolean> deleteAsync(@Nonnull @NotEmpty String context, @Nonnull @NotEmpty String key);
+
+    /**
+     * @see org.opensaml.storage.StorageService#deleteWithVersion(long, String, String)
+     */
+    @Nonnull
+    CompletionStage<Boolean> deleteWithVersionAsync(@Positive long version, @Nonnull @NotEmpty String context, @Nonnull @NotEmpty String key);
+}
@@ -0,0 +1,107 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+import org.opensaml.storage.StorageRecord;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * {@link EntryProcessor} that runs an update or delete processor on a storage record whose value may be the header of
+ * chunks, and also returns the header the record had before and the expiration it has after. The caller learns in the
+ * same operation which chunks were replaced or removed, and which need their time to live changed.
+ */
+public class ChunkedRecordProcessor implements EntryProcessor<Object, StorageRecord, ChunkedRecordProcessor.Result>, DataSerializable {
+    private EntryProcessor<Object, StorageRecord, Long> delegate;
+
+    /**
+     * Constructor used by Hazelcast for deserialization.
+     */
+    public ChunkedRecordProcessor() {
+    }
+
+    /**
+     * @param delegate the processor changing the record, which must be serializable by Hazelcast
+     */
+    public ChunkedRecordProcessor(EntryProcessor<Object, StorageRecord, Long> delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Result process(Map.Entry<Object, StorageRecord> entry) {
+        StorageRecord before = entry.getValue();
+        Long result = this.delegate.process(entry);
+        StorageRecord after = entry.getValue();
+        return new Result(result, before != null && ValueChunks.isHeader(before.getValue()) ? before.getValue() : null,
+                after != null ? after.getExpiration() : null);
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeObject(this.delegate);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        this.delegate = in.readObject();
+    }
+
+    /**
+     * The result of the delegate processor with the previous chunk header and the current expiration of the record.
+     */
+    public static class Result implements DataSerializable {
+        private Long result;
+        private String previousHeader;
+        private Long expiration;
+
+        /**
+         * Constructor used by Hazelcast for deserialization.
+         */
+        public Result() {
+        }
+
+        public Result(Long result, String previousHeader, Long expiration) {
+            this.result = result;
+            this.previousHeader = previousHeader;
+            this.expiration = expiration;
+        }
+
+        /**
+         * @return the result of the delegate processor
+         */
+        public Long getResult() {
+            return this.result;
+        }
+
+        /**
+         * @return the value of the record before the processor ran if it was a chunk header, otherwise null
+         */
+        public String getPreviousHeader() {
+            return this.previousHeader;
+        }
+
+        /**
+         * @return the expiration of the record after the processor ran
+         */
+        public Long getExpiration() {
+            return this.expiration;
+        }
+
+        @Override
+        public void writeData(ObjectDataOutput out) throws IOException {
+            out.writeObject(this.result);
+            out.writeString(this.previousHeader);
+            out.writeObject(this.expiration);
+        }
+
+        @Override
+        public void readData(ObjectDataInput in) throws IOException {
+            this.result = in.readObject();
+            this.previousHeader = in.readString();
+            this.expiration = in.readObject();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.query.extractor.ValueCollector;
+import com.hazelcast.query.extractor.ValueExtractor;
+
+/**
+ * {@link ValueExtractor} that exposes the context of a {@link SingleHazelcastMapBackedStorageService.CompositeKey} as
+ * a query attribute without going through reflection. Used as the {@code __key.}{@value #ATTRIBUTE} attribute.
+ */
+public class CompositeKeyContextExtractor implements ValueExtractor<SingleHazelcastMapBackedStorageService.CompositeKey, Object> {
+    public static final String ATTRIBUTE = "storageContext";
+
+    @Override
+    public void extract(SingleHazelcastMapBackedStorageService.CompositeKey target, Object argument, ValueCollector collector) {
+        // the interface declares the collector as a raw type
+        @SuppressWarnings("unchecked")
+        ValueCollector<String> contexts = collector;
+        contexts.addObject(target.getContext());
+    }
+}
@@ -0,0 +1,47 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.StreamSerializer;
+
+import java.io.IOException;
+
+/**
+ * Serializer for {@link SingleHazelcastMapBackedStorageService.CompositeKey} and its partition aware variant. Writes
+ * the fields directly instead of using Java serialization, so no class descriptor is stored with every key.
+ */
+public class CompositeKeySerializer implements StreamSerializer<SingleHazelcastMapBackedStorageService.CompositeKey> {
+    public static final int TYPE_ID = 12346;
+
+    @Override
+    public void write(ObjectDataOutput out, SingleHazelcastMapBackedStorageService.CompositeKey object) throws IOException {
+        out.writeString(object.getContext());
+        out.writeString(object.getKey());
+        if (object instanceof SingleHazelcastMapBackedStorageService.PartitionAwareCompositeKey) {
+            out.writeString(((SingleHazelcastMapBackedStorageService.PartitionAwareCompositeKey) object).getPartitionKey());
+        } else {
+            out.writeString(null);
+        }
+    }
+
+    @Override
+    public SingleHazelcastMapBackedStorageService.CompositeKey read(ObjectDataInput in) throws IOException {
+        String context = in.readString();
+        String key = in.readString();
+        String partitionKey = in.readString();
+        if (partitionKey != null) {
+            return new SingleHazelcastMapBackedStorageService.PartitionAwareCompositeKey(context, key, partitionKey);
+        }
+        return new SingleHazelcastMapBackedStorageService.CompositeKey(context, key);
+    }
+
+    @Override
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    @Override
+    public void destroy() {
+
+    }
+}
@@ -0,0 +1,125 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.config.InMemoryFormat;
+import com.hazelcast.config.MapConfig;
+
+import java.util.Objects;
+
+/**
+ * Settings of the map holding a context, applied by a storage service to the map configuration on initialization.
+ * Settings that are not set keep the value of the Hazelcast configuration. For example, sessions can be tuned for
+ * latency and consent for durability:
+ * <pre>
+ * &lt;property name="contextMapSettings"&gt;
+ *     &lt;map&gt;
+ *         &lt;entry key="session"&gt;
+ *             &lt;bean class="net.unicon.iam.shibboleth.storage.hazelcast.ContextMapSettings"
+ *                   p:backupCount="0" p:asyncBackupCount="1" p:readBackupData="true" /&gt;
+ *         &lt;/entry&gt;
+ *         &lt;entry key="consent"&gt;
+ *             &lt;bean class="net.unicon.iam.shibboleth.storage.hazelcast.ContextMapSettings" p:backupCount="2" /&gt;
+ *         &lt;/entry&gt;
+ *     &lt;/map&gt;
+ * &lt;/property&gt;
+ * </pre>
+ */
+public class ContextMapSettings {
+    private Integer backupCount;
+    private Integer asyncBackupCount;
+    private InMemoryFormat inMemoryFormat;
+    private Boolean readBackupData;
+
+    public Integer getBackupCount() {
+        return this.backupCount;
+    }
+
+    /**
+     * @param backupCount the number of backups the owner waits for on every write
+     */
+    public void setBackupCount(Integer backupCount) {
+        this.backupCount = backupCount;
+    }
+
+    public Integer getAsyncBackupCount() {
+        return this.asyncBackupCount;
+    }
+
+    /**
+     * @param asyncBackupCount the number of backups written without waiting for them, which may lose the most recent
+     *                         writes if the owner fails
+     */
+    public void setAsyncBackupCount(Integer asyncBackupCount) {
+        this.asyncBackupCount = asyncBackupCount;
+    }
+
+    public InMemoryFormat getInMemoryFormat() {
+        return this.inMemoryFormat;
+    }
+
+    /**
+     * Set the format in which the records are kept in memory. With {@link InMemoryFormat#OBJECT} the entry processors
+     * behind updates, expiration touches and context-wide updates work on the stored records without deserializing
+     * and serializing them, and on the backups as well. Reads still serialize the record for the response. This suits
+     * contexts that are updated far more often than read, such as sessions. The storage services never change a stored
+     * record in place, and Hazelcast returns copies to callers, so records are not shared between threads.
+     *
+     * @param inMemoryFormat the format in which the records are kept in memory
+     */
+    public void setInMemoryFormat(InMemoryFormat inMemoryFormat) {
+        this.inMemoryFormat = inMemoryFormat;
+    }
+
+    public Boolean getReadBackupData() {
+        return this.readBackupData;
+    }
+
+    /**
+     * @param readBackupData whether members answer reads from their backups, which saves a network hop but may
+     *                       return a value older than the latest write
+     */
+    public void setReadBackupData(Boolean readBackupData) {
+        this.readBackupData = readBackupData;
+    }
+
+    /**
+     * Apply the settings that are set to a map configuration.
+     *
+     * @param mapConfig the configuration to change
+     */
+    public void applyTo(MapConfig mapConfig) {
+        if (this.asyncBackupCount != null) {
+            // the sum of both counts is limited, so lower the synchronous count first if it is set
+            if (this.backupCount != null) {
+                mapConfig.setBackupCount(Math.min(this.backupCount, mapConfig.getBackupCount()));
+            }
+            mapConfig.setAsyncBackupCount(this.asyncBackupCount);
+        }
+        if (this.backupCount != null) {
+            mapConfig.setBackupCount(this.backupCount);
+        }
+        if (this.inMemoryFormat != null) {
+            mapConfig.setInMemoryFormat(this.inMemoryFormat);
+        }
+        if (this.readBackupData != null) {
+            mapConfig.setReadBackupData(this.readBackupData);
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ContextMapSettings)) {
+            return false;
+        }
+        ContextMapSettings that = (ContextMapSettings) obj;
+        return Objects.equals(this.backupCount, that.backupCount) && Objects.equals(this.asyncBackupCount, that.asyncBackupCount)
+                && this.inMemoryFormat == that.inMemoryFormat && Objects.equals(this.readBackupData, that.readBackupData);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.backupCount, this.asyncBackupCount, this.inMemoryFormat, this.readBackupData);
+    }
+}
@@ -0,0 +1,171 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Coalesces expiration extensions of records written recently by this node.
+ * <p>
+ * The expiration last written for each key is tracked locally. An extension that moves the expiration forward by no
+ * more than the configured window is recorded as pending instead of being written, and a background task writes the
+ * pending extensions every flush interval. Extensions are only deferred while the stored expiration is more than two
+ * flush intervals away, and they are written with {@link StorageRecordExtendProcessor}, so no record expires earlier
+ * than requested. Memory is bounded by the maximum number of tracked keys; keys beyond it are written through.
+ * <p>
+ * A deferred extension is reported as successful without contacting the cluster, so if another node deletes the record
+ * within the window the caller is told the extension succeeded although there was no record left to extend. Deletes
+ * by this node forget the key and are never affected, and so do expirations written by this node without being
+ * deferred, so that a pending extension never undoes a shortened expiration.
+ */
+class ExpirationCoalescer {
+    private static final Logger logger = LoggerFactory.getLogger(ExpirationCoalescer.class);
+
+    /**
+     * Writes an expiration extension, completing with the version of the record or {@code null} if it is gone.
+     */
+    interface Writer {
+        CompletionStage<Long> extendExpiration(String context, String key, long expiration);
+    }
+
+    private final Writer writer;
+    private final long window;
+    private final long flushInterval;
+    private final int maxKeys;
+    private final Map<SingleHazelcastMapBackedStorageService.CompositeKey, Long> written = new ConcurrentHashMap<>();
+    private final Map<SingleHazelcastMapBackedStorageService.CompositeKey, Long> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    ExpirationCoalescer(String name, Writer writer, long window, long flushInterval, int maxKeys) {
+        this.writer = writer;
+        this.window = window;
+        this.flushInterval = flushInterval;
+        this.maxKeys = maxKeys;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "hazelcast-storage-expiration-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Try to defer an expiration extension.
+     *
+     * @return true if the extension was deferred, false if it must be written now
+     */
+    boolean defer(String context, String key, Long expiration) {
+        if (expiration == null) {
+            return false;
+        }
+        SingleHazelcastMapBackedStorageService.CompositeKey compositeKey = new SingleHazelcastMapBackedStorageService.CompositeKey(context, key);
+        Long stored = this.written.get(compositeKey);
+        if (stored == null || expiration < stored || expiration - stored > this.window
+                || stored - System.currentTimeMillis() <= 2 * this.flushInterval) {
+            return false;
+        }
+        if (this.pending.size() >= this.maxKeys && !this.pending.containsKey(compositeKey)) {
+            return false;
+        }
+        this.pending.merge(compositeKey, expiration, Math::max);
+        return true;
+    }
+
+    /**
+     * Record that an expiration was written to the cluster. The expiration replaces the one tracked for the key, as
+     * it may have shortened it.
+     */
+    void written(String context, String key, Long expiration) {
+        SingleHazelcastMapBackedStorageService.CompositeKey compositeKey = new SingleHazelcastMapBackedStorageService.CompositeKey(context, key);
+        if (expiration == null) {
+            this.written.remove(compositeKey);
+            return;
+        }
+        if (this.written.size() < this.maxKeys || this.written.containsKey(compositeKey)) {
+            this.written.put(compositeKey, expiration);
+        }
+    }
+
+    /**
+     * Forget a key whose record was changed or removed by this node.
+     */
+    void forget(String context, String key) {
+        SingleHazelcastMapBackedStorageService.CompositeKey compositeKey = new SingleHazelcastMapBackedStorageService.CompositeKey(context, key);
+        this.written.remove(compositeKey);
+        this.pending.remove(compositeKey);
+    }
+
+    /**
+     * Forget all keys of a context.
+     */
+    void forgetContext(String context) {
+        this.written.keySet().removeIf(compositeKey -> compositeKey.getContext().equals(context));
+        this.pending.keySet().removeIf(compositeKey -> compositeKey.getContext().equals(context));
+    }
+
+    /**
+     * Write all pending extensions and drop tracked keys whose expiration has passed.
+     *
+     * @return a future completing once the extensions are written, never exceptionally
+     */
+    CompletableFuture<Void> flush() {
+        List<CompletableFuture<?>> writes = new ArrayList<>();
+        try {
+            for (Map.Entry<SingleHazelcastMapBackedStorageService.CompositeKey, Long> entry : this.pending.entrySet()) {
+                SingleHazelcastMapBackedStorageService.CompositeKey compositeKey = entry.getKey();
+                long expiration = entry.getValue();
+                if (!this.pending.remove(compositeKey, expiration)) {
+                    continue;
+                }
+                writes.add(this.writer.extendExpiration(compositeKey.getContext(), compositeKey.getKey(), expiration).handle((version, throwable) -> {
+                    if (throwable != null) {
+                        logger.warn("Unable to extend expiration of {}:{}", compositeKey.getContext(), compositeKey.getKey(), throwable);
+                        this.written.remove(compositeKey);
+                    } else if (version == null) {
+                        this.written.remove(compositeKey);
+                    } else {
+                        this.written.computeIfPresent(compositeKey, (k, stored) -> Math.max(stored, expiration));
+                    }
+                    return null;
+                }).toCompletableFuture());
+            }
+            long now = System.currentTimeMillis();
+            this.written.values().removeIf(expiration -> expiration <= now);
+        } catch (RuntimeException e) {
+            logger.warn("Problem flushing pending expiration extensions", e);
+        }
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Stop the background task and write the remaining pending extensions, waiting for them so that they are not lost
+     * when the Hazelcast instance is shut down next.
+     *
+     * @param timeoutMillis the maximum time to wait for the background task and the writes
+     */
+    void shutdown(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        this.scheduler.shutdown();
+        try {
+            // a flush in progress may still be collecting its writes
+            this.scheduler.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+            flush().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while writing pending expiration extensions");
+        } catch (ExecutionException | TimeoutException e) {
+            logger.warn("Pending expiration extensions were not written within {} ms", timeoutMillis, e);
+        }
+    }
+}
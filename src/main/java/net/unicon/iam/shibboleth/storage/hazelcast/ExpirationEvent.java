@@ -0,0 +1,57 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A record removed by Hazelcast rather than by a storage operation, because it expired or was evicted from a full
+ * context.
+ */
+public class ExpirationEvent {
+    /**
+     * Why a record was removed.
+     */
+    public enum Cause {
+        /**
+         * The time to live of the record passed.
+         */
+        EXPIRED,
+        /**
+         * The record was evicted to make room in a full context.
+         */
+        EVICTED
+    }
+
+    private final String context;
+    private final String key;
+    private final Cause cause;
+
+    public ExpirationEvent(@Nonnull String context, @Nullable String key, @Nonnull Cause cause) {
+        this.context = context;
+        this.key = key;
+        this.cause = cause;
+    }
+
+    @Nonnull
+    public String getContext() {
+        return this.context;
+    }
+
+    /**
+     * @return the key of the record, or null if the service stores only a hash of it
+     */
+    @Nullable
+    public String getKey() {
+        return this.key;
+    }
+
+    @Nonnull
+    public Cause getCause() {
+        return this.cause;
+    }
+
+    @Override
+    public String toString() {
+        return this.cause + " " + this.context + ":" + this.key;
+    }
+}
@@ -0,0 +1,104 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hands expiration events from the Hazelcast event threads to the {@link ExpirationListener}s in batches.
+ * <p>
+ * Events are queued without blocking and delivered by a single thread, which takes whatever has queued up to the
+ * maximum batch size. Memory is bounded by the capacity of the queue; events that do not fit are dropped and counted,
+ * so slow listeners never hold up Hazelcast.
+ */
+class ExpirationEventPipeline {
+    private static final Logger logger = LoggerFactory.getLogger(ExpirationEventPipeline.class);
+
+    private final String name;
+    private final List<ExpirationListener> listeners;
+    private final int maxBatchSize;
+    private final BlockingQueue<ExpirationEvent> queue;
+    private final ExecutorService executor;
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    ExpirationEventPipeline(String name, List<ExpirationListener> listeners, int capacity, int maxBatchSize) {
+        this.name = name;
+        this.listeners = new ArrayList<>(listeners);
+        this.maxBatchSize = maxBatchSize;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "hazelcast-storage-expiration-events-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.execute(this::run);
+    }
+
+    /**
+     * Queue an event, dropping it if the queue is full.
+     */
+    void offer(ExpirationEvent event) {
+        if (!this.queue.offer(event)) {
+            this.dropped.increment();
+            if (this.dropped.sum() == 1) {
+                logger.warn("Expiration event queue of storage service {} is full, dropping events", this.name);
+            }
+        }
+    }
+
+    long getDelivered() {
+        return this.delivered.sum();
+    }
+
+    long getDropped() {
+        return this.dropped.sum();
+    }
+
+    private void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                ExpirationEvent first = this.queue.take();
+                // listeners may keep the batch, so every batch is a new list
+                List<ExpirationEvent> batch = new ArrayList<>(Math.min(this.maxBatchSize, this.queue.size() + 1));
+                batch.add(first);
+                this.queue.drainTo(batch, this.maxBatchSize - 1);
+                deliver(Collections.unmodifiableList(batch));
+            }
+        } catch (InterruptedException e) {
+            // shut down
+        }
+    }
+
+    private void deliver(List<ExpirationEvent> batch) {
+        for (ExpirationListener listener : this.listeners) {
+            try {
+                listener.onExpiration(batch);
+            } catch (RuntimeException e) {
+                logger.warn("Expiration listener {} of storage service {} failed", listener, this.name, e);
+            }
+        }
+        this.delivered.add(batch.size());
+    }
+
+    /**
+     * Stop delivering events. Events still queued are discarded.
+     */
+    void shutdown() {
+        this.executor.shutdownNow();
+        try {
+            this.executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import java.util.List;
+
+/**
+ * Callback for the records removed by Hazelcast because they expired or were evicted, e.g. to clean up data kept
+ * elsewhere about them. Each removal is reported once in the cluster, by the member that owned the record.
+ */
+public interface ExpirationListener {
+    /**
+     * Called with a batch of removals on the thread of the event pipeline of the storage service. Listeners should
+     * return quickly, as events are dropped while the pipeline is full.
+     *
+     * @param events the removals, in the order they were reported by Hazelcast
+     */
+    void onExpiration(List<ExpirationEvent> events);
+}
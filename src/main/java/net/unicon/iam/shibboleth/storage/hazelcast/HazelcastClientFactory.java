@@ -0,0 +1,251 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.client.HazelcastClient;
+import com.hazelcast.client.config.ClientConfig;
+import com.hazelcast.client.config.ClientConnectionStrategyConfig;
+import com.hazelcast.client.config.ClientNetworkConfig;
+import com.hazelcast.client.properties.ClientProperty;
+import com.hazelcast.core.HazelcastInstance;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates Hazelcast clients of a dedicated data cluster for the storage services, so that IdP nodes are not members of
+ * the cluster and their garbage collection pauses do not affect it.
+ * <p>
+ * Clients use smart routing by default: each operation is sent directly to the member that owns the key. The storage
+ * serializers are always added to the client configuration; the members of the data cluster need them as well, see
+ * {@link HazelcastStorageSerialization}. For example:
+ * <pre>
+ * &lt;bean id="hazelcastClientFactory" class="net.unicon.iam.shibboleth.storage.hazelcast.HazelcastClientFactory"
+ *       p:clusterName="idp" p:addresses="10.0.0.1:5701,10.0.0.2:5701" /&gt;
+ *
+ * &lt;bean id="hazelcast" factory-bean="hazelcastClientFactory" factory-method="newHazelcastClient"
+ *       destroy-method="shutdown" /&gt;
+ * </pre>
+ * Storage services using the client should set {@code shutdownInstanceOnDestroy} to {@code false}.
+ */
+public class HazelcastClientFactory {
+    private ClientConfig clientConfig;
+    private String clusterName;
+    private String instanceName;
+    private List<String> addresses = new ArrayList<>();
+    private boolean smartRouting = true;
+    private int connectionTimeout = 5000;
+    private long clusterConnectTimeout = 20000;
+    private int initialBackoff = 1000;
+    private int maxBackoff = 30000;
+    private long heartbeatInterval = 5000;
+    private long heartbeatTimeout = 60000;
+    private int invocationTimeoutSeconds = 120;
+    private int compressionThreshold = MutableStorageRecordSerializer.NO_COMPRESSION;
+    private boolean legacySerializationFormat;
+    private boolean legacyKeyFormat;
+
+    public ClientConfig getClientConfig() {
+        return this.clientConfig;
+    }
+
+    /**
+     * @param clientConfig the configuration the settings of this factory are applied to, e.g. loaded from a file
+     */
+    public void setClientConfig(ClientConfig clientConfig) {
+        this.clientConfig = clientConfig;
+    }
+
+    public String getClusterName() {
+        return this.clusterName;
+    }
+
+    public void setClusterName(String clusterName) {
+        this.clusterName = clusterName;
+    }
+
+    public String getInstanceName() {
+        return this.instanceName;
+    }
+
+    public void setInstanceName(String instanceName) {
+        this.instanceName = instanceName;
+    }
+
+    public List<String> getAddresses() {
+        return this.addresses;
+    }
+
+    /**
+     * @param addresses the addresses of the members to connect to initially, as {@code host:port}
+     */
+    public void setAddresses(List<String> addresses) {
+        this.addresses = addresses != null ? new ArrayList<>(addresses) : new ArrayList<>();
+    }
+
+    public boolean isSmartRouting() {
+        return this.smartRouting;
+    }
+
+    /**
+     * @param smartRouting whether to connect to all members and send each operation to the owner of its key, rather
+     *                     than routing everything through a single member
+     */
+    public void setSmartRouting(boolean smartRouting) {
+        this.smartRouting = smartRouting;
+    }
+
+    public int getConnectionTimeout() {
+        return this.connectionTimeout;
+    }
+
+    /**
+     * @param connectionTimeout the timeout in milliseconds for establishing a connection to a member
+     */
+    public void setConnectionTimeout(int connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    public long getClusterConnectTimeout() {
+        return this.clusterConnectTimeout;
+    }
+
+    /**
+     * @param clusterConnectTimeout the time in milliseconds the client keeps trying to connect to the cluster before
+     *                              giving up, {@code -1} for no limit
+     */
+    public void setClusterConnectTimeout(long clusterConnectTimeout) {
+        this.clusterConnectTimeout = clusterConnectTimeout;
+    }
+
+    public int getInitialBackoff() {
+        return this.initialBackoff;
+    }
+
+    /**
+     * @param initialBackoff the wait in milliseconds before the first reconnection attempt
+     */
+    public void setInitialBackoff(int initialBackoff) {
+        this.initialBackoff = initialBackoff;
+    }
+
+    public int getMaxBackoff() {
+        return this.maxBackoff;
+    }
+
+    /**
+     * @param maxBackoff the maximum wait in milliseconds between reconnection attempts
+     */
+    public void setMaxBackoff(int maxBackoff) {
+        this.maxBackoff = maxBackoff;
+    }
+
+    public long getHeartbeatInterval() {
+        return this.heartbeatInterval;
+    }
+
+    /**
+     * @param heartbeatInterval the interval in milliseconds at which idle connections are checked
+     */
+    public void setHeartbeatInterval(long heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    public long getHeartbeatTimeout() {
+        return this.heartbeatTimeout;
+    }
+
+    /**
+     * @param heartbeatTimeout the time in milliseconds without a response after which a connection is closed
+     */
+    public void setHeartbeatTimeout(long heartbeatTimeout) {
+        this.heartbeatTimeout = heartbeatTimeout;
+    }
+
+    public int getInvocationTimeoutSeconds() {
+        return this.invocationTimeoutSeconds;
+    }
+
+    /**
+     * @param invocationTimeoutSeconds the time in seconds an operation is retried before it fails
+     */
+    public void setInvocationTimeoutSeconds(int invocationTimeoutSeconds) {
+        this.invocationTimeoutSeconds = invocationTimeoutSeconds;
+    }
+
+    public int getCompressionThreshold() {
+        return this.compressionThreshold;
+    }
+
+    /**
+     * @param compressionThreshold the size in bytes at which record values are compressed when serialized
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public boolean isLegacySerializationFormat() {
+        return this.legacySerializationFormat;
+    }
+
+    /**
+     * @param legacySerializationFormat whether records are written in the format of older releases, see
+     *                                  {@link AbstractHazelcastMapBackedStorageService#setLegacySerializationFormat(boolean)}
+     */
+    public void setLegacySerializationFormat(boolean legacySerializationFormat) {
+        this.legacySerializationFormat = legacySerializationFormat;
+    }
+
+    public boolean isLegacyKeyFormat() {
+        return this.legacyKeyFormat;
+    }
+
+    /**
+     * @param legacyKeyFormat whether composite keys keep the Java serialization of older releases, see
+     *                        {@link AbstractHazelcastMapBackedStorageService#setLegacyKeyFormat(boolean)}
+     */
+    public void setLegacyKeyFormat(boolean legacyKeyFormat) {
+        this.legacyKeyFormat = legacyKeyFormat;
+    }
+
+    /**
+     * Build the client configuration from the base configuration, if any, and the settings of this factory.
+     *
+     * @return the client configuration
+     */
+    public ClientConfig buildClientConfig() {
+        ClientConfig config = this.clientConfig != null ? new ClientConfig(this.clientConfig) : new ClientConfig();
+        if (this.clusterName != null) {
+            config.setClusterName(this.clusterName);
+        }
+        if (this.instanceName != null) {
+            config.setInstanceName(this.instanceName);
+        }
+
+        ClientNetworkConfig networkConfig = config.getNetworkConfig();
+        for (String address : this.addresses) {
+            networkConfig.addAddress(address.trim());
+        }
+        networkConfig.setSmartRouting(this.smartRouting);
+        networkConfig.setConnectionTimeout(this.connectionTimeout);
+
+        ClientConnectionStrategyConfig connectionStrategyConfig = config.getConnectionStrategyConfig();
+        connectionStrategyConfig.setReconnectMode(ClientConnectionStrategyConfig.ReconnectMode.ON);
+        connectionStrategyConfig.getConnectionRetryConfig()
+                .setClusterConnectTimeoutMillis(this.clusterConnectTimeout)
+                .setInitialBackoffMillis(this.initialBackoff)
+                .setMaxBackoffMillis(this.maxBackoff);
+
+        config.setProperty(ClientProperty.HEARTBEAT_INTERVAL.getName(), Long.toString(this.heartbeatInterval));
+        config.setProperty(ClientProperty.HEARTBEAT_TIMEOUT.getName(), Long.toString(this.heartbeatTimeout));
+        config.setProperty(ClientProperty.INVOCATION_TIMEOUT_SECONDS.getName(), Integer.toString(this.invocationTimeoutSeconds));
+
+        HazelcastStorageSerialization.addSerializers(config.getSerializationConfig(), this.compressionThreshold, this.legacySerializationFormat, this.legacyKeyFormat);
+        return config;
+    }
+
+    /**
+     * @return a new client connected to the cluster
+     */
+    public HazelcastInstance newHazelcastClient() {
+        return HazelcastClient.newHazelcastClient(buildClientConfig());
+    }
+}
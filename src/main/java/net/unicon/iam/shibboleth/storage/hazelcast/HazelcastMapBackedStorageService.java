@@ -2,38 +2,41 @@ package net.unicon.iam.shibboleth.storage.hazelcast;
 
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.map.IMap;
-import com.hazelcast.query.PagingPredicate;
-import com.hazelcast.query.Predicates;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
 import org.opensaml.storage.StorageRecord;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.IOException;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.locks.Lock;
 
 /**
  * Implementation of {@link org.opensaml.storage.AbstractMapBackedStorageService} that uses
  * Hazelcast for storage.
  */
 public class HazelcastMapBackedStorageService extends AbstractHazelcastMapBackedStorageService {
-    private static final int DEFAULT_PAGE_SIZE = 100;
-    protected final int pageSize;
 
+    /**
+     * @param hazelcastInstance the Hazelcast instance
+     * @param pageSize          ignored, context-wide operations are executed on the members without paging
+     * @deprecated use {@link #HazelcastMapBackedStorageService(HazelcastInstance)}
+     */
+    @Deprecated
     public HazelcastMapBackedStorageService(HazelcastInstance hazelcastInstance, int pageSize) {
-        super(hazelcastInstance);
-        this.pageSize = pageSize;
+        this(hazelcastInstance);
     }
 
     public HazelcastMapBackedStorageService(HazelcastInstance hazelcastInstance) {
-        this(hazelcastInstance, DEFAULT_PAGE_SIZE);
+        super(hazelcastInstance);
     }
 
     @Override
     protected IMap<Object, StorageRecord> getMap(String context, String key) {
-        return this.hazelcastInstance.getMap(context);
+        return getCachedMap(context);
+    }
+
+    @Override
+    protected String getMapName(String context) {
+        return context;
     }
 
     @Override
@@ -43,31 +46,20 @@ public class HazelcastMapBackedStorageService extends AbstractHazelcastMapBacked
 
     /**
      * {@inheritDoc}
+     * <p>
+     * The expiration is updated by a single entry processor invocation per member, which updates the entries it
+     * owns in parallel.
      */
     @Override
-    public void updateContextExpiration(@Nonnull String context, @Nullable Long expiration) throws IOException {
-        IMap<String, StorageRecord> backingMap = this.hazelcastInstance.getMap(context);
-        final Lock lock = hazelcastInstance.getCPSubsystem().getLock(context);
-        lock.lock();
-        try {
-            PagingPredicate pagingPredicate = Predicates.pagingPredicate(this.pageSize);
-            for (Set<Map.Entry<String, StorageRecord>> entrySet = backingMap.entrySet(pagingPredicate);
-                 !entrySet.isEmpty();
-                 pagingPredicate.nextPage(), entrySet = backingMap.entrySet(pagingPredicate)) {
-                for (Map.Entry entry : entrySet) {
-                    this.updateExpiration(context, (String) entry.getKey(), expiration);
-                }
-            }
-        } finally {
-            lock.unlock();
-        }
+    protected void doUpdateContextExpiration(@Nonnull String context, @Nullable Long expiration) throws IOException {
+        this.getMap(context, null).executeOnEntries(new StorageRecordExpirationProcessor(expiration));
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void deleteContext(@Nonnull @NotEmpty String context) throws IOException {
-        this.hazelcastInstance.getMap(context).clear();
+    protected void doDeleteContext(@Nonnull @NotEmpty String context) throws IOException {
+        this.getMap(context, null).clear();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,100 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.config.SerializationConfig;
+import com.hazelcast.config.SerializerConfig;
+import org.opensaml.storage.MutableStorageRecord;
+
+/**
+ * Adds the serializers of the storage services to a Hazelcast member or client configuration.
+ * <p>
+ * Storage services register the serializers at runtime on an embedded member, but every member of a cluster needs
+ * them to run the entry processors, including members that run no storage service, as do Hazelcast clients. Configure
+ * them with {@code config.getSerializationConfig()} of a {@link com.hazelcast.config.Config} or a
+ * {@link com.hazelcast.client.config.ClientConfig}, or in XML as serializers for
+ * {@code org.opensaml.storage.MutableStorageRecord},
+ * {@code net.unicon.iam.shibboleth.storage.hazelcast.SingleHazelcastMapBackedStorageService$CompositeKey},
+ * {@code net.unicon.iam.shibboleth.storage.hazelcast.ReplayCacheStorageService$ReplayCacheKey} and
+ * {@code net.unicon.iam.shibboleth.storage.hazelcast.ValueChunkKey}.
+ */
+public final class HazelcastStorageSerialization {
+    private HazelcastStorageSerialization() {
+    }
+
+    /**
+     * Add the serializers without value compression, unless serializers for the types are configured already.
+     *
+     * @param serializationConfig the configuration to change
+     * @return the configuration
+     */
+    public static SerializationConfig addSerializers(SerializationConfig serializationConfig) {
+        return addSerializers(serializationConfig, MutableStorageRecordSerializer.NO_COMPRESSION);
+    }
+
+    /**
+     * Add the serializers, unless serializers for the types are configured already.
+     *
+     * @param serializationConfig  the configuration to change
+     * @param compressionThreshold the size in bytes at which record values are compressed
+     * @return the configuration
+     */
+    public static SerializationConfig addSerializers(SerializationConfig serializationConfig, int compressionThreshold) {
+        return addSerializers(serializationConfig, compressionThreshold, false);
+    }
+
+    /**
+     * Add the serializers, unless serializers for the types are configured already.
+     *
+     * @param serializationConfig  the configuration to change
+     * @param compressionThreshold the size in bytes at which record values are compressed
+     * @param legacyFormat         whether records are written in the format of older releases, for a rolling upgrade
+     *                             of a cluster that still has members running them
+     * @return the configuration
+     */
+    public static SerializationConfig addSerializers(SerializationConfig serializationConfig, int compressionThreshold, boolean legacyFormat) {
+        return addSerializers(serializationConfig, compressionThreshold, legacyFormat, false);
+    }
+
+    /**
+     * Add the serializers, unless serializers for the types are configured already.
+     *
+     * @param serializationConfig  the configuration to change
+     * @param compressionThreshold the size in bytes at which record values are compressed
+     * @param legacyFormat         whether records are written in the format of older releases, for a rolling upgrade
+     *                             of a cluster that still has members running them
+     * @param legacyKeyFormat      whether composite keys keep the Java serialization of older releases, see
+     *                             {@link AbstractHazelcastMapBackedStorageService#setLegacyKeyFormat(boolean)}
+     * @return the configuration
+     */
+    public static SerializationConfig addSerializers(SerializationConfig serializationConfig, int compressionThreshold, boolean legacyFormat, boolean legacyKeyFormat) {
+        if (!hasSerializer(serializationConfig, MutableStorageRecord.class)) {
+            serializationConfig.addSerializerConfig(new SerializerConfig()
+                    .setTypeClass(MutableStorageRecord.class)
+                    .setImplementation(new MutableStorageRecordSerializer(compressionThreshold, legacyFormat)));
+        }
+        if (!legacyKeyFormat && !hasSerializer(serializationConfig, SingleHazelcastMapBackedStorageService.CompositeKey.class)) {
+            serializationConfig.addSerializerConfig(new SerializerConfig()
+                    .setTypeClass(SingleHazelcastMapBackedStorageService.CompositeKey.class)
+                    .setImplementation(new CompositeKeySerializer()));
+        }
+        if (!hasSerializer(serializationConfig, ReplayCacheStorageService.ReplayCacheKey.class)) {
+            serializationConfig.addSerializerConfig(new SerializerConfig()
+                    .setTypeClass(ReplayCacheStorageService.ReplayCacheKey.class)
+                    .setImplementation(new ReplayCacheKeySerializer()));
+        }
+        if (!hasSerializer(serializationConfig, ValueChunkKey.class)) {
+            serializationConfig.addSerializerConfig(new SerializerConfig()
+                    .setTypeClass(ValueChunkKey.class)
+                    .setImplementation(new ValueChunkKeySerializer()));
+        }
+        return serializationConfig;
+    }
+
+    private static boolean hasSerializer(SerializationConfig serializationConfig, Class<?> type) {
+        for (SerializerConfig serializerConfig : serializationConfig.getSerializerConfigs()) {
+            if (type.equals(serializerConfig.getTypeClass()) || type.getName().equals(serializerConfig.getTypeClassName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,23 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Extracts the attribute a record of an indexed context is found by, e.g. the principal of a session, so that all
+ * records with the same attribute can be looked up or deleted at once. See
+ * {@link AbstractHazelcastMapBackedStorageService#setIndexAttributeExtractors(java.util.Map)}.
+ */
+@FunctionalInterface
+public interface IndexAttributeExtractor {
+    /**
+     * Called whenever a record is written or deleted, so implementations should be cheap and must be deterministic.
+     *
+     * @param context the context of the record
+     * @param key     the key of the record
+     * @param value   the value of the record
+     * @return the attribute, or null if the record is not indexed
+     */
+    @Nullable
+    String extract(@Nonnull String context, @Nonnull String key, @Nonnull String value);
+}
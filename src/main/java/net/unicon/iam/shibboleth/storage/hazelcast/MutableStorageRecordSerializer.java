@@ -6,25 +6,173 @@ import com.hazelcast.nio.serialization.StreamSerializer;
 import org.opensaml.storage.MutableStorageRecord;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+/**
+ * Serializer for storage records.
+ * <p>
+ * Records are written with a header byte followed by the varint encoded version and expiration and the value as
+ * UTF-8 bytes. Values at or above the compression threshold are deflated if that makes them smaller. The header byte
+ * always has its high bit set, which distinguishes it from the original format (a big-endian version long, a UTF
+ * string and an expiration long using {@code -1} for none) so records written by older releases can still be read
+ * during a rolling upgrade. Older releases cannot read the new format, so while they are still members of the cluster
+ * the serializer must be created with {@code legacyFormat} set, and only switched to the new format once every member
+ * runs a release that reads it.
+ */
 public class MutableStorageRecordSerializer implements StreamSerializer<MutableStorageRecord> {
+    /**
+     * Type id of the serializer. Unchanged from the original format, as it is stored with every serialized record.
+     */
+    public static final int TYPE_ID = 12345;
+
+    /**
+     * Threshold value that disables compression.
+     */
+    public static final int NO_COMPRESSION = Integer.MAX_VALUE;
+
+    private static final int FORMAT_MARKER = 0x80;
+    private static final int FORMAT_VERSION_1 = 0x10;
+    private static final int FORMAT_VERSION_MASK = 0x70;
+    private static final int FLAG_EXPIRATION = 0x01;
+    private static final int FLAG_COMPRESSED = 0x02;
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private static final LongAdder RECORDS_SERIALIZED = new LongAdder();
+    private static final LongAdder BYTES_SERIALIZED = new LongAdder();
+
+    private final int compressionThreshold;
+    private final boolean legacyFormat;
+
+    public MutableStorageRecordSerializer() {
+        this(NO_COMPRESSION);
+    }
+
+    /**
+     * @param compressionThreshold the size in bytes of the UTF-8 encoded value at which compression is attempted
+     */
+    public MutableStorageRecordSerializer(int compressionThreshold) {
+        this(compressionThreshold, false);
+    }
+
+    /**
+     * @param compressionThreshold the size in bytes of the UTF-8 encoded value at which compression is attempted
+     * @param legacyFormat         whether to write the original format, which is never compressed, for members of
+     *                             older releases in the same cluster
+     */
+    public MutableStorageRecordSerializer(int compressionThreshold, boolean legacyFormat) {
+        this.compressionThreshold = compressionThreshold;
+        this.legacyFormat = legacyFormat;
+    }
+
+    public int getCompressionThreshold() {
+        return this.compressionThreshold;
+    }
+
+    public boolean isLegacyFormat() {
+        return this.legacyFormat;
+    }
+
+    /**
+     * @return the number of records serialized by all serializers in this JVM, whichever service or Hazelcast
+     * instance they belong to
+     */
+    public static long getJvmRecordsSerialized() {
+        return RECORDS_SERIALIZED.sum();
+    }
+
+    /**
+     * @return the number of bytes written for the records serialized by all serializers in this JVM, whichever
+     * service or Hazelcast instance they belong to
+     */
+    public static long getJvmBytesSerialized() {
+        return BYTES_SERIALIZED.sum();
+    }
 
     @Override
     public void write(ObjectDataOutput out, MutableStorageRecord object) throws IOException {
-        out.writeLong(object.getVersion());
-        out.writeUTF(object.getValue());
+        if (this.legacyFormat) {
+            writeOriginalFormat(out, object);
+            return;
+        }
+        byte[] value = object.getValue().getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = value.length >= this.compressionThreshold ? compress(value) : null;
 
+        int header = FORMAT_MARKER | FORMAT_VERSION_1;
+        if (object.getExpiration() != null) {
+            header |= FLAG_EXPIRATION;
+        }
+        if (compressed != null) {
+            header |= FLAG_COMPRESSED;
+        }
+        out.writeByte(header);
+        int size = 1 + writeVarLong(out, object.getVersion());
         if (object.getExpiration() != null) {
-            out.writeLong(object.getExpiration());
+            size += writeVarLong(out, object.getExpiration());
+        }
+        size += writeVarLong(out, value.length);
+        if (compressed != null) {
+            size += writeVarLong(out, compressed.length);
+            out.write(compressed);
+            size += compressed.length;
         } else {
-            out.writeLong(-1);
+            out.write(value);
+            size += value.length;
         }
+        RECORDS_SERIALIZED.increment();
+        BYTES_SERIALIZED.add(size);
     }
 
     @Override
     public MutableStorageRecord read(ObjectDataInput in) throws IOException {
-        long version = in.readLong();
-        String value = in.readUTF();
+        int header = in.readUnsignedByte();
+        if ((header & FORMAT_MARKER) == 0) {
+            return readOriginalFormat(header, in);
+        }
+        if ((header & FORMAT_VERSION_MASK) != FORMAT_VERSION_1) {
+            throw new IOException("Unsupported storage record format " + ((header & FORMAT_VERSION_MASK) >> 4));
+        }
+
+        long version = readVarLong(in);
+        Long expiration = (header & FLAG_EXPIRATION) != 0 ? readVarLong(in) : null;
+        byte[] value = new byte[(int) readVarLong(in)];
+        if ((header & FLAG_COMPRESSED) != 0) {
+            byte[] compressed = new byte[(int) readVarLong(in)];
+            in.readFully(compressed);
+            decompress(compressed, value);
+        } else {
+            in.readFully(value);
+        }
+        return new VersionMutableStorageRecord(new String(value, StandardCharsets.UTF_8), expiration, version);
+    }
+
+    /**
+     * Write a record like the original serializer.
+     */
+    private static void writeOriginalFormat(ObjectDataOutput out, MutableStorageRecord object) throws IOException {
+        byte[] value = object.getValue().getBytes(StandardCharsets.UTF_8);
+        out.writeLong(object.getVersion());
+        out.writeString(object.getValue());
+        out.writeLong(object.getExpiration() != null ? object.getExpiration() : -1);
+        RECORDS_SERIALIZED.increment();
+        // the string is written as its length followed by its UTF-8 bytes
+        BYTES_SERIALIZED.add(Long.BYTES + Integer.BYTES + value.length + Long.BYTES);
+    }
+
+    /**
+     * Read a record written by the original serializer, whose first byte has already been consumed.
+     */
+    private MutableStorageRecord readOriginalFormat(int firstByte, ObjectDataInput in) throws IOException {
+        long version = firstByte;
+        for (int i = 0; i < 7; i++) {
+            version = (version << 8) | in.readUnsignedByte();
+        }
+        String value = in.readString();
         Long expiration = in.readLong();
         if (expiration == -1) {
             expiration = null;
@@ -32,13 +180,83 @@ public class MutableStorageRecordSerializer implements StreamSerializer<MutableS
         return new VersionMutableStorageRecord(value, expiration, version);
     }
 
+    private static byte[] compress(byte[] value) {
+        Deflater deflater = DEFLATER.get();
+        try {
+            deflater.setInput(value);
+            deflater.finish();
+            // only worth storing if it is smaller than the raw value
+            byte[] buffer = new byte[value.length];
+            int length = 0;
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if (!deflater.finished() || length >= value.length) {
+                return null;
+            }
+            byte[] compressed = new byte[length];
+            System.arraycopy(buffer, 0, compressed, 0, length);
+            return compressed;
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    private static void decompress(byte[] compressed, byte[] value) throws IOException {
+        Inflater inflater = INFLATER.get();
+        try {
+            inflater.setInput(compressed);
+            int length = 0;
+            while (length < value.length && !inflater.finished()) {
+                int read = inflater.inflate(value, length, value.length - length);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += read;
+            }
+            if (length != value.length) {
+                throw new IOException("Truncated compressed storage record value");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed storage record value", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    private static int writeVarLong(ObjectDataOutput out, long value) throws IOException {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+            size++;
+        }
+        out.writeByte((int) value);
+        return size;
+    }
+
+    private static long readVarLong(ObjectDataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in storage record");
+    }
+
     @Override
     public int getTypeId() {
-        return 12345;
+        return TYPE_ID;
     }
 
     @Override
     public void destroy() {
 
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,32 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link IndexAttributeExtractor} that extracts the first group of the first match of a regular expression in the
+ * value, e.g. {@code "nm":"([^"]+)"} for a principal name in a JSON value. Records whose value does not match are not
+ * indexed.
+ */
+public class PatternIndexAttributeExtractor implements IndexAttributeExtractor {
+    private final Pattern pattern;
+
+    /**
+     * @param regex the regular expression, whose first group is the attribute
+     */
+    public PatternIndexAttributeExtractor(@Nonnull String regex) {
+        this.pattern = Pattern.compile(regex);
+        if (this.pattern.matcher("").groupCount() < 1) {
+            throw new IllegalArgumentException("The regular expression " + regex + " has no group");
+        }
+    }
+
+    @Nullable
+    @Override
+    public String extract(@Nonnull String context, @Nonnull String key, @Nonnull String value) {
+        Matcher matcher = this.pattern.matcher(value);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+}
@@ -0,0 +1,55 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.map.ExtendedMapEntry;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link EntryProcessor} that inserts a replay cache entry with its time to live if no entry exists for the key, the
+ * asynchronous equivalent of {@link com.hazelcast.map.IMap#putIfAbsent(Object, Object, long, TimeUnit)}. The same
+ * processor can be sent to many keys at once, as it carries no per-key value.
+ * <p>
+ * The processor returns {@code true} if the entry was created and {@code false} if an entry already existed.
+ */
+public class ReplayCacheCreateProcessor implements EntryProcessor<Object, Long, Boolean>, DataSerializable {
+    private Long expiration;
+
+    /**
+     * Constructor used by Hazelcast for deserialization.
+     */
+    public ReplayCacheCreateProcessor() {
+    }
+
+    /**
+     * @param expiration the expiration of the entry, or null for none
+     */
+    public ReplayCacheCreateProcessor(Long expiration) {
+        this.expiration = expiration;
+    }
+
+    @Override
+    public Boolean process(Map.Entry<Object, Long> entry) {
+        if (entry.getValue() != null) {
+            return false;
+        }
+        ((ExtendedMapEntry<Object, Long>) entry).setValue(ReplayCacheStorageService.toValue(expiration),
+                AbstractHazelcastMapBackedStorageService.getSystemExpiration(expiration), TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeObject(expiration);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        expiration = in.readObject();
+    }
+}
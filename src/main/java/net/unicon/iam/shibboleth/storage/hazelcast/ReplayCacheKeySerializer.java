@@ -0,0 +1,38 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.StreamSerializer;
+
+import java.io.IOException;
+
+/**
+ * Serializer for {@link ReplayCacheStorageService.ReplayCacheKey}, which writes the 16 bytes of the hash and nothing
+ * else.
+ */
+public class ReplayCacheKeySerializer implements StreamSerializer<ReplayCacheStorageService.ReplayCacheKey> {
+    public static final int TYPE_ID = 12347;
+
+    @Override
+    public void write(ObjectDataOutput out, ReplayCacheStorageService.ReplayCacheKey object) throws IOException {
+        out.writeLong(object.getHigh());
+        out.writeLong(object.getLow());
+    }
+
+    @Override
+    public ReplayCacheStorageService.ReplayCacheKey read(ObjectDataInput in) throws IOException {
+        long high = in.readLong();
+        long low = in.readLong();
+        return new ReplayCacheStorageService.ReplayCacheKey(high, low);
+    }
+
+    @Override
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    @Override
+    public void destroy() {
+
+    }
+}
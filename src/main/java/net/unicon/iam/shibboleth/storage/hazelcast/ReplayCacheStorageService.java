@@ -0,0 +1,329 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.collection.Pair;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.unicon.iam.shibboleth.storage.hazelcast.metrics.StorageOperation;
+import org.opensaml.storage.StorageRecord;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Storage service for contexts whose records are only ever created and checked for existence, such as the replay
+ * cache. It uses one map per context, like {@link HazelcastMapBackedStorageService}, but stores far less per record:
+ * the key is a fixed-width 128-bit hash of the context and the key, and the value is only the expiration.
+ * <p>
+ * Values are discarded. Records read back have an empty value and always version {@value #VERSION}; updates only
+ * change the expiration. Creating a record is a single atomic insert with its time to live on the member that owns
+ * the key, rather than a separate existence check and write.
+ * <p>
+ * The hash is an MD5 digest of the context and key. Two distinct keys are only confused if their digests collide,
+ * which for keys that are not chosen to collide is far less likely than any other failure of the cluster.
+ * <p>
+ * As its values are not storage records, the settings of the base class that work on storage records, secondary
+ * indexes, value chunking and expiration coalescing, are rejected.
+ */
+public class ReplayCacheStorageService extends AbstractHazelcastMapBackedStorageService {
+    /**
+     * The version of every record, as records are never changed in place.
+     */
+    public static final long VERSION = 1L;
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported", e);
+        }
+    });
+
+    public ReplayCacheStorageService(HazelcastInstance hazelcastInstance) {
+        super(hazelcastInstance);
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        if (!getIndexAttributeExtractors().isEmpty()) {
+            throw new ComponentInitializationException("The replay cache storage service does not support secondary indexes");
+        }
+        if (isChunking()) {
+            throw new ComponentInitializationException("The replay cache storage service does not support value chunking");
+        }
+        if (getExpirationCoalescingWindow() > 0) {
+            throw new ComponentInitializationException("The replay cache storage service does not support expiration coalescing");
+        }
+        super.doInitialize();
+    }
+
+    @Override
+    protected IMap<Object, StorageRecord> getMap(String context, String key) {
+        return getCachedMap(context);
+    }
+
+    private IMap<Object, Long> getReplayCacheMap(String context) {
+        return getCachedMap(context);
+    }
+
+    @Override
+    protected String getMapName(String context) {
+        return context;
+    }
+
+    @Override
+    protected Object getKey(String context, String key) {
+        return ReplayCacheKey.of(context, key);
+    }
+
+    static long toValue(Long expiration) {
+        return expiration != null ? expiration : 0;
+    }
+
+    /**
+     * @return the record stored with the given value, or null if there is none or it has expired
+     */
+    @Nullable
+    private static StorageRecord toRecord(@Nullable Long value) {
+        if (value == null || (value != 0 && value <= System.currentTimeMillis())) {
+            return null;
+        }
+        return new VersionMutableStorageRecord("", value != 0 ? value : null, VERSION);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The value is not stored.
+     */
+    @Override
+    protected CompletionStage<Boolean> doCreateAsync(String context, String key, String value, Long expiration) {
+        IOException sizeException = checkSizes(context, key, null);
+        if (sizeException != null) {
+            return failed(sizeException);
+        }
+        return getReplayCacheMap(context).submitToKey(getKey(context, key), new ReplayCacheCreateProcessor(expiration));
+    }
+
+    @Override
+    protected CompletionStage<StorageRecord> doReadAsync(String context, String key) {
+        return getReplayCacheMap(context).getAsync(getKey(context, key)).thenApply(ReplayCacheStorageService::toRecord);
+    }
+
+    @Override
+    protected CompletionStage<Pair<Long, StorageRecord>> doReadAsync(String context, String key, long version) {
+        return doReadAsync(context, key).thenApply(storageRecord -> {
+            if (storageRecord == null) {
+                return new Pair<>();
+            }
+            return new Pair<>(VERSION, version == VERSION ? null : storageRecord);
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only the expiration is updated, the value is not stored.
+     */
+    @Override
+    protected CompletionStage<Long> doUpdateAsync(Long version, String context, String key, String value, Long expiration) {
+        IOException sizeException = checkSizes(context, key, null);
+        if (sizeException != null) {
+            return failed(sizeException);
+        }
+        return getReplayCacheMap(context).submitToKey(getKey(context, key), new ReplayCacheUpdateProcessor(version, expiration, false, false))
+                .thenApply(AbstractHazelcastMapBackedStorageService::checkVersion);
+    }
+
+    @Override
+    protected CompletionStage<Boolean> doUpdateExpirationAsync(String context, String key, Long expiration) {
+        return doUpdateAsync(null, context, key, null, expiration).thenApply(Objects::nonNull);
+    }
+
+    @Override
+    protected CompletionStage<Boolean> doDeleteAsync(Long version, String context, String key) {
+        if (version == null) {
+            return getReplayCacheMap(context).removeAsync(getKey(context, key)).thenApply(Objects::nonNull);
+        }
+        return getReplayCacheMap(context).submitToKey(getKey(context, key), new ReplayCacheUpdateProcessor(version, null, true, false))
+                .thenApply(result -> checkVersion(result) != null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Nonnull
+    @Override
+    public Map<String, StorageRecord> readAll(@Nonnull @NotEmpty String context, @Nonnull Collection<String> keys) throws IOException {
+        long start = startNanos();
+        try {
+            Map<Object, String> mapKeys = getMapKeys(context, keys);
+            Map<String, StorageRecord> result = new HashMap<>();
+            for (Map.Entry<Object, Long> entry : getReplayCacheMap(context).getAll(mapKeys.keySet()).entrySet()) {
+                StorageRecord storageRecord = toRecord(entry.getValue());
+                if (storageRecord != null) {
+                    result.put(mapKeys.get(entry.getKey()), storageRecord);
+                }
+            }
+            recordSuccess(StorageOperation.READ_ALL, context, start);
+            return result;
+        } catch (RuntimeException e) {
+            recordError(StorageOperation.READ_ALL, context, start);
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The values are not stored, so a single processor is sent for all keys.
+     */
+    @Nonnull
+    @Override
+    public Map<String, Boolean> createAll(@Nonnull @NotEmpty String context, @Nonnull Map<String, String> values, @Nullable @Positive Long expiration) throws IOException {
+        long start = startNanos();
+        try {
+            for (String key : values.keySet()) {
+                IOException sizeException = checkSizes(context, key, null);
+                if (sizeException != null) {
+                    throw sizeException;
+                }
+            }
+            Map<Object, String> mapKeys = getMapKeys(context, values.keySet());
+            Map<Object, Boolean> created = await(getReplayCacheMap(context).submitToKeys(mapKeys.keySet(), new ReplayCacheCreateProcessor(expiration)));
+
+            Map<String, Boolean> result = new HashMap<>();
+            for (Map.Entry<Object, String> mapKey : mapKeys.entrySet()) {
+                result.put(mapKey.getValue(), Boolean.TRUE.equals(created.get(mapKey.getKey())));
+            }
+            recordSuccess(StorageOperation.CREATE_ALL, context, start);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            recordError(StorageOperation.CREATE_ALL, context, start);
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Nonnull
+    @Override
+    public Map<String, Boolean> deleteAll(@Nonnull @NotEmpty String context, @Nonnull Collection<String> keys) throws IOException {
+        long start = startNanos();
+        try {
+            IMap<Object, Long> map = getReplayCacheMap(context);
+            Map<String, CompletableFuture<Long>> removals = new HashMap<>();
+            for (String key : keys) {
+                removals.put(key, map.removeAsync(getKey(context, key)).toCompletableFuture());
+            }
+            List<CompletableFuture<Long>> futures = new ArrayList<>(removals.values());
+            await(CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])));
+
+            Map<String, Boolean> result = new HashMap<>();
+            removals.forEach((key, removal) -> result.put(key, removal.join() != null));
+            recordSuccess(StorageOperation.DELETE_ALL, context, start);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            recordError(StorageOperation.DELETE_ALL, context, start);
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doUpdateContextExpiration(@Nonnull @NotEmpty String context, @Nullable Long expiration) throws IOException {
+        getReplayCacheMap(context).executeOnEntries(new ReplayCacheUpdateProcessor(null, expiration, false, true));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doDeleteContext(@Nonnull @NotEmpty String context) throws IOException {
+        getReplayCacheMap(context).clear();
+    }
+
+    /**
+     * The 128-bit hash of a context and key.
+     */
+    public static final class ReplayCacheKey {
+        private final long high;
+        private final long low;
+
+        public ReplayCacheKey(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        /**
+         * Hash a context and key. The context is length prefixed, so no two pairs are hashed from the same bytes.
+         *
+         * @param context the context
+         * @param key     the key
+         * @return the hash
+         */
+        public static ReplayCacheKey of(String context, String key) {
+            MessageDigest digest = DIGEST.get();
+            byte[] contextBytes = context.getBytes(StandardCharsets.UTF_8);
+            digest.update(intToBytes(contextBytes.length));
+            digest.update(contextBytes);
+            digest.update(key.getBytes(StandardCharsets.UTF_8));
+            byte[] hash = digest.digest();
+            return new ReplayCacheKey(bytesToLong(hash, 0), bytesToLong(hash, 8));
+        }
+
+        private static byte[] intToBytes(int value) {
+            return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        }
+
+        private static long bytesToLong(byte[] bytes, int offset) {
+            long result = 0;
+            for (int i = offset; i < offset + 8; i++) {
+                result = (result << 8) | (bytes[i] & 0xff);
+            }
+            return result;
+        }
+
+        public long getHigh() {
+            return this.high;
+        }
+
+        public long getLow() {
+            return this.low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) this.low;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof ReplayCacheKey)) {
+                return false;
+            }
+            ReplayCacheKey that = (ReplayCacheKey) obj;
+            return this.high == that.high && this.low == that.low;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.map.ExtendedMapEntry;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link EntryProcessor} that resets the expiration and time to live of a replay cache entry, or removes it, after
+ * checking the version the entry is reported with.
+ * <p>
+ * The processor returns {@code null} if the entry does not exist or the result is discarded,
+ * {@link StorageRecordUpdateProcessor#VERSION_MISMATCH} if a version was supplied and does not match, and
+ * {@link ReplayCacheStorageService#VERSION} otherwise.
+ */
+public class ReplayCacheUpdateProcessor implements EntryProcessor<Object, Long, Long>, DataSerializable {
+    private Long version;
+    private Long expiration;
+    private boolean remove;
+    private boolean discardResult;
+
+    /**
+     * Constructor used by Hazelcast for deserialization.
+     */
+    public ReplayCacheUpdateProcessor() {
+    }
+
+    /**
+     * @param version       the expected version of the entry, or {@code null} to skip the version check
+     * @param expiration    the new expiration of the entry
+     * @param remove        whether to remove the entry instead of updating its expiration
+     * @param discardResult whether to return {@code null} for every entry, for context-wide updates through
+     *                      {@link com.hazelcast.map.IMap#executeOnEntries}
+     */
+    public ReplayCacheUpdateProcessor(Long version, Long expiration, boolean remove, boolean discardResult) {
+        this.version = version;
+        this.expiration = expiration;
+        this.remove = remove;
+        this.discardResult = discardResult;
+    }
+
+    @Override
+    public Long process(Map.Entry<Object, Long> entry) {
+        if (entry.getValue() == null) {
+            return null;
+        }
+        if (version != null && version != ReplayCacheStorageService.VERSION) {
+            return StorageRecordUpdateProcessor.VERSION_MISMATCH;
+        }
+
+        if (remove) {
+            entry.setValue(null);
+        } else {
+            ((ExtendedMapEntry<Object, Long>) entry).setValue(ReplayCacheStorageService.toValue(expiration),
+                    AbstractHazelcastMapBackedStorageService.getSystemExpiration(expiration), TimeUnit.MILLISECONDS);
+        }
+        return discardResult ? null : ReplayCacheStorageService.VERSION;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeObject(version);
+        out.writeObject(expiration);
+        out.writeBoolean(remove);
+        out.writeBoolean(discardResult);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        version = in.readObject();
+        expiration = in.readObject();
+        remove = in.readBoolean();
+        discardResult = in.readBoolean();
+    }
+}
@@ -0,0 +1,209 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.map.IMap;
+import com.hazelcast.query.Predicates;
+import org.opensaml.storage.StorageRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * The secondary index of the indexed contexts of a storage service, see
+ * {@link AbstractHazelcastMapBackedStorageService#setIndexAttributeExtractors(Map)}. Each attribute of a context has
+ * a single entry in the index map of the context, holding the keys of the records with that attribute.
+ * <p>
+ * Keys are added before their records are written, so the index never misses a record. The index entries of records
+ * are read before the records are deleted, and their keys are then only removed if they were not added again by a
+ * concurrent write in between, which does not depend on any clock. Keys found without a record by a lookup are only
+ * removed once they have been in the index for a grace period, as their records may still be being written. The
+ * grace period is measured by the clock of the member owning the index entry, against stamps that may have been taken
+ * by a previous owner, so it has to be well above the clock skew between members.
+ */
+class SecondaryIndex {
+    private static final Logger logger = LoggerFactory.getLogger(SecondaryIndex.class);
+
+    // keys added to an index this recently may belong to records that are still being written
+    private static final long PRUNE_GRACE_PERIOD = 60000;
+
+    private final AbstractHazelcastMapBackedStorageService storageService;
+    private final Map<String, IndexAttributeExtractor> extractors;
+
+    SecondaryIndex(AbstractHazelcastMapBackedStorageService storageService, Map<String, IndexAttributeExtractor> extractors) {
+        this.storageService = storageService;
+        this.extractors = extractors;
+    }
+
+    boolean isIndexed(String context) {
+        return this.extractors.containsKey(context);
+    }
+
+    /**
+     * @return the index attribute of a record, or null if its context is not indexed or the record has none
+     */
+    @Nullable
+    String getAttribute(String context, String key, @Nullable String value) {
+        IndexAttributeExtractor extractor = this.extractors.get(context);
+        return extractor != null && value != null ? extractor.extract(context, key, value) : null;
+    }
+
+    private IMap<Object, SecondaryIndexEntry> getMap(String context) {
+        return this.storageService.getIndexMap(context);
+    }
+
+    private static Object getKey(String context, String attribute) {
+        return new SingleHazelcastMapBackedStorageService.CompositeKey(context, attribute);
+    }
+
+    CompletionStage<Object> add(String context, String attribute, Collection<String> keys) {
+        return getMap(context).submitToKey(getKey(context, attribute), SecondaryIndexProcessor.add(keys));
+    }
+
+    /**
+     * Add the keys of the values with an index attribute, with one operation per attribute.
+     */
+    CompletionStage<Void> addAll(String context, Map<String, String> values) {
+        Map<String, List<String>> keysByAttribute = new HashMap<>();
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            String attribute = getAttribute(context, value.getKey(), value.getValue());
+            if (attribute != null) {
+                keysByAttribute.computeIfAbsent(attribute, ignored -> new ArrayList<>()).add(value.getKey());
+            }
+        }
+        List<CompletableFuture<Object>> adds = new ArrayList<>();
+        keysByAttribute.forEach((attribute, keys) -> adds.add(add(context, attribute, keys).toCompletableFuture()));
+        return CompletableFuture.allOf(adds.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Read the index entries holding the keys of records that are about to be deleted.
+     */
+    CompletionStage<IndexedRecords> read(String context, Map<String, StorageRecord> records) {
+        Map<String, String> attributes = new HashMap<>();
+        Map<String, CompletableFuture<SecondaryIndexEntry>> reads = new HashMap<>();
+        records.forEach((key, storageRecord) -> {
+            String attribute = getAttribute(context, key, storageRecord.getValue());
+            if (attribute != null) {
+                attributes.put(key, attribute);
+                reads.computeIfAbsent(attribute, ignored -> getMap(context).getAsync(getKey(context, attribute)).toCompletableFuture());
+            }
+        });
+        return CompletableFuture.allOf(reads.values().toArray(new CompletableFuture[0])).thenApply(ignored -> {
+            Map<String, SecondaryIndexEntry> entries = new HashMap<>();
+            reads.forEach((attribute, read) -> entries.put(attribute, read.join()));
+            return new IndexedRecords(context, records, attributes, entries);
+        });
+    }
+
+    /**
+     * Read the records of an indexed context with the given index attribute, removing the keys of the records that
+     * are gone or have another attribute from the index unless they were added within the grace period.
+     */
+    IndexedRecords lookup(String context, String attribute) throws IOException {
+        if (!isIndexed(context)) {
+            throw new IOException("Context " + context + " is not indexed");
+        }
+        SecondaryIndexEntry entry = AbstractHazelcastMapBackedStorageService.await(getMap(context).getAsync(getKey(context, attribute)));
+        if (entry == null) {
+            return new IndexedRecords(context, Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+        }
+        Map<String, CompletableFuture<StorageRecord>> reads = new HashMap<>();
+        for (String key : entry.getKeys().keySet()) {
+            reads.put(key, this.storageService.doReadAsync(context, key).toCompletableFuture());
+        }
+        AbstractHazelcastMapBackedStorageService.await(CompletableFuture.allOf(reads.values().toArray(new CompletableFuture[0])));
+        Map<String, StorageRecord> records = new HashMap<>();
+        Map<String, String> attributes = new HashMap<>();
+        List<String> stale = new ArrayList<>();
+        reads.forEach((key, read) -> {
+            StorageRecord storageRecord = read.join();
+            if (storageRecord != null && attribute.equals(getAttribute(context, key, storageRecord.getValue()))) {
+                records.put(key, storageRecord);
+                attributes.put(key, attribute);
+            } else {
+                stale.add(key);
+            }
+        });
+        if (!stale.isEmpty()) {
+            AbstractHazelcastMapBackedStorageService.await(getMap(context).submitToKey(getKey(context, attribute),
+                    SecondaryIndexProcessor.remove(stale, entry, PRUNE_GRACE_PERIOD)));
+        }
+        return new IndexedRecords(context, records, attributes, Collections.singletonMap(attribute, entry));
+    }
+
+    /**
+     * Remove the key of a record that expired or was evicted on this member. Failures are only logged, as the key is
+     * also removed by the next lookup of its attribute.
+     */
+    void removeExpired(String context, String key, StorageRecord storageRecord) {
+        // the attribute of a chunked value is not known without its chunks, which expire with it
+        if (!isIndexed(context) || ValueChunks.isHeader(storageRecord.getValue())) {
+            return;
+        }
+        read(context, Collections.singletonMap(key, storageRecord))
+                .thenCompose(indexed -> indexed.removeKeys(Collections.singleton(key)))
+                .whenComplete((ignored, e) -> {
+                    if (e != null) {
+                        logger.warn("Unable to remove key {} of context {} from the index", key, context, e);
+                    }
+                });
+    }
+
+    void deleteContext(String context) {
+        if (isIndexed(context)) {
+            getMap(context).removeAll(Predicates.equal("__key.context", context));
+        }
+    }
+
+    /**
+     * Records of an indexed context together with the index entries holding their keys as they were read, so that
+     * the keys of the records can be removed once they are deleted.
+     */
+    class IndexedRecords {
+        private final String context;
+        private final Map<String, StorageRecord> records;
+        private final Map<String, String> attributes;
+        private final Map<String, SecondaryIndexEntry> entries;
+
+        IndexedRecords(String context, Map<String, StorageRecord> records, Map<String, String> attributes, Map<String, SecondaryIndexEntry> entries) {
+            this.context = context;
+            this.records = records;
+            this.attributes = attributes;
+            this.entries = entries;
+        }
+
+        /**
+         * @return the records by key
+         */
+        Map<String, StorageRecord> getRecords() {
+            return this.records;
+        }
+
+        /**
+         * Remove the keys of deleted records from the index, unless they were added again since their entries were
+         * read.
+         */
+        CompletionStage<Void> removeKeys(Collection<String> keys) {
+            Map<String, List<String>> keysByAttribute = new HashMap<>();
+            for (String key : keys) {
+                String attribute = this.attributes.get(key);
+                if (attribute != null && this.entries.get(attribute) != null) {
+                    keysByAttribute.computeIfAbsent(attribute, ignored -> new ArrayList<>()).add(key);
+                }
+            }
+            List<CompletableFuture<Object>> removals = new ArrayList<>();
+            keysByAttribute.forEach((attribute, removed) -> removals.add(getMap(this.context).submitToKey(getKey(this.context, attribute),
+                    SecondaryIndexProcessor.remove(removed, this.entries.get(attribute), 0)).toCompletableFuture()));
+            return CompletableFuture.allOf(removals.toArray(new CompletableFuture[0]));
+        }
+    }
+}
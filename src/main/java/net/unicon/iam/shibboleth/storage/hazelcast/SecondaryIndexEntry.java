@@ -0,0 +1,75 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Value of the companion index map of a storage map: the keys of the records of a context that have an index
+ * attribute, each with the stamp of the operation that last added it. Stamps are taken from the clock of the member
+ * owning the entry and strictly increase within an entry, so a key that was added again after the entry was read
+ * can be told apart from a key whose record is gone. The generation is chosen at random when an entry is created and
+ * tells an entry apart from an earlier entry of the same attribute that was removed once it had no keys left.
+ */
+public class SecondaryIndexEntry implements DataSerializable {
+    private long generation;
+    private long lastStamp;
+    private Map<String, Long> keys;
+
+    /**
+     * Constructor used by Hazelcast for deserialization.
+     */
+    public SecondaryIndexEntry() {
+    }
+
+    public SecondaryIndexEntry(long generation, long lastStamp, Map<String, Long> keys) {
+        this.generation = generation;
+        this.lastStamp = lastStamp;
+        this.keys = keys;
+    }
+
+    public long getGeneration() {
+        return this.generation;
+    }
+
+    /**
+     * @return the highest stamp given to a key of this entry
+     */
+    public long getLastStamp() {
+        return this.lastStamp;
+    }
+
+    /**
+     * @return the stamp, roughly the time in milliseconds each key was last added, by key
+     */
+    public Map<String, Long> getKeys() {
+        return Collections.unmodifiableMap(this.keys);
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeLong(this.generation);
+        out.writeLong(this.lastStamp);
+        out.writeInt(this.keys.size());
+        for (Map.Entry<String, Long> key : this.keys.entrySet()) {
+            out.writeString(key.getKey());
+            out.writeLong(key.getValue());
+        }
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        this.generation = in.readLong();
+        this.lastStamp = in.readLong();
+        int size = in.readInt();
+        this.keys = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            this.keys.put(in.readString(), in.readLong());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * {@link EntryProcessor} that adds keys to and removes keys from an entry of an index map in a single operation on
+ * the member that owns it. Added keys are stamped by the owning member, see {@link SecondaryIndexEntry}. Removed keys
+ * are only removed if the entry is of the generation that was read and they were not added again since, which
+ * involves no clock. With a grace period they are also only removed if they were added at least that long ago by the
+ * clock of the owning member. After the partition of the entry migrates, that clock is compared with stamps taken by
+ * the previous owner, so the grace period is shortened or lengthened by the difference between their clocks. An
+ * entry left without keys is removed. The stored entry is never modified in place. The result is always
+ * {@code null}.
+ */
+public class SecondaryIndexProcessor implements EntryProcessor<Object, SecondaryIndexEntry, Object>, DataSerializable {
+    private Collection<String> addedKeys;
+    private Collection<String> removedKeys;
+    private long generation;
+    private long addedUpTo;
+    private long gracePeriod;
+
+    /**
+     * Constructor used by Hazelcast for deserialization.
+     */
+    public SecondaryIndexProcessor() {
+    }
+
+    /**
+     * @param addedKeys   the keys to add
+     * @param removedKeys the keys to remove
+     * @param generation  the generation of the entry the removed keys were read from
+     * @param addedUpTo   the highest stamp of the entry the removed keys were read from
+     * @param gracePeriod the time in milliseconds a removed key must have been in the entry, or 0 for none
+     */
+    public SecondaryIndexProcessor(Collection<String> addedKeys, Collection<String> removedKeys, long generation, long addedUpTo, long gracePeriod) {
+        this.addedKeys = addedKeys;
+        this.removedKeys = removedKeys;
+        this.generation = generation;
+        this.addedUpTo = addedUpTo;
+        this.gracePeriod = gracePeriod;
+    }
+
+    public static SecondaryIndexProcessor add(Collection<String> keys) {
+        return new SecondaryIndexProcessor(keys, Collections.emptyList(), 0, 0, 0);
+    }
+
+    public static SecondaryIndexProcessor remove(Collection<String> keys, SecondaryIndexEntry read, long gracePeriod) {
+        return new SecondaryIndexProcessor(Collections.emptyList(), keys, read.getGeneration(), read.getLastStamp(), gracePeriod);
+    }
+
+    @Override
+    public Object process(Map.Entry<Object, SecondaryIndexEntry> entry) {
+        SecondaryIndexEntry current = entry.getValue();
+        Map<String, Long> keys = current != null ? new HashMap<>(current.getKeys()) : new HashMap<>();
+        long generation = current != null ? current.getGeneration() : ThreadLocalRandom.current().nextLong();
+        long lastStamp = current != null ? current.getLastStamp() : 0;
+        long now = System.currentTimeMillis();
+        boolean changed = false;
+        if (current != null && generation == this.generation) {
+            for (String key : this.removedKeys) {
+                Long stamp = keys.get(key);
+                if (stamp != null && stamp <= this.addedUpTo && (this.gracePeriod <= 0 || now - stamp >= this.gracePeriod)) {
+                    keys.remove(key);
+                    changed = true;
+                }
+            }
+        }
+        if (!this.addedKeys.isEmpty()) {
+            lastStamp = Math.max(now, lastStamp + 1);
+            for (String key : this.addedKeys) {
+                keys.put(key, lastStamp);
+            }
+            changed = true;
+        }
+        if (changed) {
+            entry.setValue(keys.isEmpty() ? null : new SecondaryIndexEntry(generation, lastStamp, keys));
+        }
+        return null;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        writeKeys(out, this.addedKeys);
+        writeKeys(out, this.removedKeys);
+        out.writeLong(this.generation);
+        out.writeLong(this.addedUpTo);
+        out.writeLong(this.gracePeriod);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        this.addedKeys = readKeys(in);
+        this.removedKeys = readKeys(in);
+        this.generation = in.readLong();
+        this.addedUpTo = in.readLong();
+        this.gracePeriod = in.readLong();
+    }
+
+    private static void writeKeys(ObjectDataOutput out, Collection<String> keys) throws IOException {
+        out.writeInt(keys.size());
+        for (String key : keys) {
+            out.writeString(key);
+        }
+    }
+
+    private static Collection<String> readKeys(ObjectDataInput in) throws IOException {
+        int size = in.readInt();
+        Collection<String> keys = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            keys.add(in.readString());
+        }
+        return keys;
+    }
+}
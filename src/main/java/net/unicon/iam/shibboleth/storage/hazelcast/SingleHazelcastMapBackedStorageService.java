@@ -1,25 +1,42 @@
 package net.unicon.iam.shibboleth.storage.hazelcast;
 
+import com.hazelcast.config.AttributeConfig;
+import com.hazelcast.config.IndexConfig;
+import com.hazelcast.config.IndexType;
+import com.hazelcast.config.MapConfig;
 import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.partition.PartitionAware;
 import com.hazelcast.map.IMap;
 import com.hazelcast.query.Predicate;
-import com.hazelcast.query.PredicateBuilder;
 import com.hazelcast.query.Predicates;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import org.opensaml.storage.StorageRecord;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 /**
  * Implementation of {@link org.opensaml.storage.AbstractMapBackedStorageService} that uses
  * Hazelcast for storage. This implementation will use a single named IMap for storage.
+ * <p>
+ * By default the entries of a context are spread over all partitions of the map. Setting
+ * {@link #setPartitionsPerContext(int)} places the entries of each context in a fixed number of partitions instead, so
+ * context-wide operations only touch those partitions rather than querying the whole cluster.
+ * <p>
+ * On initialization the map is configured with a hash index on the context of the keys, read through
+ * {@link CompositeKeyContextExtractor}, so context lookups do not scan the map.
  */
 public class SingleHazelcastMapBackedStorageService extends AbstractHazelcastMapBackedStorageService {
+    private static final String DEFAULT_CONTEXT_ATTRIBUTE = "__key.context";
     private final String mapName;
+    private int partitionsPerContext;
+    private String contextAttribute;
 
     public SingleHazelcastMapBackedStorageService(String mapName, HazelcastInstance hazelcastInstance) {
         super(hazelcastInstance);
@@ -28,41 +45,157 @@ public class SingleHazelcastMapBackedStorageService extends AbstractHazelcastMap
 
     @Override
     protected IMap<Object, StorageRecord> getMap(String context, String key) {
-        return this.hazelcastInstance.getMap(mapName);
+        return getCachedMap(this.mapName);
+    }
+
+    @Override
+    protected String getMapName(String context) {
+        return this.mapName;
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (this.contextAttribute == null) {
+            this.contextAttribute = DEFAULT_CONTEXT_ATTRIBUTE;
+            // clients cannot see the configuration of the cluster and keep the default unless told otherwise
+            if (!isClient()) {
+                MapConfig mapConfig = this.hazelcastInstance.getConfig().getMapConfigOrNull(this.mapName);
+                if (mapConfig != null && mapConfig.getIndexConfigs().contains(getContextIndexConfig())) {
+                    this.contextAttribute = getContextIndexConfig().getAttributes().get(0);
+                }
+            }
+        }
+    }
+
+    public String getContextAttribute() {
+        return this.contextAttribute;
+    }
+
+    /**
+     * Set the attribute used to query the entries of a context. By default {@code __key.storageContext} is used if the
+     * map has the context index, and {@code __key.context} otherwise. Clients of a cluster whose map is configured
+     * with {@link CompositeKeyContextExtractor} and the index should set {@code __key.storageContext}.
+     *
+     * @param contextAttribute the attribute
+     */
+    public void setContextAttribute(String contextAttribute) {
+        this.contextAttribute = contextAttribute;
+    }
+
+    @Override
+    protected Set<String> getInitialMapNames() {
+        Set<String> mapNames = super.getInitialMapNames();
+        mapNames.add(this.mapName);
+        return mapNames;
+    }
+
+    @Override
+    protected void customizeMapConfig(String mapName, MapConfig mapConfig) {
+        super.customizeMapConfig(mapName, mapConfig);
+
+        AttributeConfig attributeConfig = new AttributeConfig(CompositeKeyContextExtractor.ATTRIBUTE, CompositeKeyContextExtractor.class.getName());
+        if (!mapConfig.getAttributeConfigs().contains(attributeConfig)) {
+            mapConfig.addAttributeConfig(attributeConfig);
+        }
+        if (!mapConfig.getIndexConfigs().contains(getContextIndexConfig())) {
+            mapConfig.addIndexConfig(getContextIndexConfig());
+        }
+    }
+
+    @Override
+    protected String getContext(String mapName, Object mapKey) {
+        return mapKey instanceof CompositeKey ? ((CompositeKey) mapKey).getContext() : mapName;
+    }
+
+    @Override
+    protected String getStorageKey(Object mapKey) {
+        return mapKey instanceof CompositeKey ? ((CompositeKey) mapKey).getKey() : null;
+    }
+
+    private static IndexConfig getContextIndexConfig() {
+        return new IndexConfig(IndexType.HASH, "__key." + CompositeKeyContextExtractor.ATTRIBUTE);
+    }
+
+    public int getPartitionsPerContext() {
+        return this.partitionsPerContext;
+    }
+
+    /**
+     * Set the number of partitions the entries of a context are colocated in. With {@code 1} all entries of a context
+     * live in a single partition; larger values spread a context over that many partitions by key hash so that busy
+     * contexts do not create a single hot partition. {@code 0}, the default, disables colocation.
+     * <p>
+     * Changing this value changes the keys used in the map, so it must be the same on all nodes and existing entries
+     * are not found after a change.
+     *
+     * @param partitionsPerContext the number of partitions per context
+     */
+    public void setPartitionsPerContext(int partitionsPerContext) {
+        if (partitionsPerContext < 0) {
+            throw new IllegalArgumentException("partitionsPerContext must not be negative");
+        }
+        this.partitionsPerContext = partitionsPerContext;
     }
 
     @Override
     protected Object getKey(String context, String key) {
+        if (this.partitionsPerContext > 0) {
+            return new PartitionAwareCompositeKey(context, key, getPartitionKey(context, Math.floorMod(key.hashCode(), this.partitionsPerContext)));
+        }
         return new CompositeKey(context, key);
     }
 
-    private Set getContextKeySet(String context) {
-        IMap backingMap = this.getMap(context, null);
-        PredicateBuilder.EntryObject e = Predicates.newPredicateBuilder().getEntryObject();
-        Predicate contextPredicate = e.key().get("context").equal(context);
-        return backingMap.keySet(contextPredicate);
+    private String getPartitionKey(String context, int bucket) {
+        return this.partitionsPerContext == 1 ? context : context + ":" + bucket;
     }
 
-    @Override
-    public void updateContextExpiration(@Nonnull @NotEmpty String context, @Nullable Long expiration) throws IOException {
-        for (Object key : this.getContextKeySet(context)) {
-            this.updateExpiration(((CompositeKey) key).getContext(), ((CompositeKey) key).getKey(), expiration);
+    /**
+     * Get the predicates selecting the entries of a context. If contexts are colocated there is one partition-scoped
+     * predicate per partition of the context, otherwise a single predicate that is evaluated cluster wide.
+     */
+    protected List<Predicate<Object, StorageRecord>> getContextPredicates(String context) {
+        Predicate<Object, StorageRecord> contextPredicate = Predicates.equal(this.contextAttribute, context);
+        List<Predicate<Object, StorageRecord>> predicates = new ArrayList<>();
+        if (this.partitionsPerContext > 0) {
+            for (int i = 0; i < this.partitionsPerContext; i++) {
+                predicates.add(Predicates.partitionPredicate(getPartitionKey(context, i), contextPredicate));
+            }
+        } else {
+            predicates.add(contextPredicate);
         }
+        return predicates;
+    }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The expiration is updated by a single entry processor invocation per member that owns entries of the context.
+     */
+    @Override
+    protected void doUpdateContextExpiration(@Nonnull @NotEmpty String context, @Nullable Long expiration) throws IOException {
+        IMap<Object, StorageRecord> backingMap = this.getMap(context, null);
+        for (Predicate<Object, StorageRecord> predicate : this.getContextPredicates(context)) {
+            backingMap.executeOnEntries(new StorageRecordExpirationProcessor(expiration), predicate);
+        }
     }
 
+    /**
+     * {@inheritDoc}
+     */
     @Override
-    public void deleteContext(@Nonnull @NotEmpty String context) throws IOException {
-        IMap backingMap = this.getMap(context, null);
-        Set keySet = this.getContextKeySet(context);
-        for (Object o : keySet) {
-            backingMap.delete(o);
+    protected void doDeleteContext(@Nonnull @NotEmpty String context) throws IOException {
+        IMap<Object, StorageRecord> backingMap = this.getMap(context, null);
+        for (Predicate<Object, StorageRecord> predicate : this.getContextPredicates(context)) {
+            backingMap.removeAll(predicate);
         }
     }
 
     public static class CompositeKey implements Serializable {
         private final String context;
         private final String key;
+        private transient int hash;
 
         public CompositeKey(final String context, final String key) {
             this.context = context;
@@ -79,7 +212,12 @@ public class SingleHazelcastMapBackedStorageService extends AbstractHazelcastMap
 
         @Override
         public int hashCode() {
-            return (context + ":" + key).hashCode();
+            int h = this.hash;
+            if (h == 0) {
+                h = 31 * this.context.hashCode() + this.key.hashCode();
+                this.hash = h;
+            }
+            return h;
         }
 
         @Override
@@ -94,4 +232,22 @@ public class SingleHazelcastMapBackedStorageService extends AbstractHazelcastMap
             return this.context.equals(that.context) && this.key.equals(that.key);
         }
     }
+
+    /**
+     * {@link CompositeKey} that places the entry in the partition of the given partition key rather than hashing the
+     * whole key.
+     */
+    public static class PartitionAwareCompositeKey extends CompositeKey implements PartitionAware<String> {
+        private final String partitionKey;
+
+        public PartitionAwareCompositeKey(final String context, final String key, final String partitionKey) {
+            super(context, key);
+            this.partitionKey = partitionKey;
+        }
+
+        @Override
+        public String getPartitionKey() {
+            return this.partitionKey;
+        }
+    }
 }
\ No newline at end of file
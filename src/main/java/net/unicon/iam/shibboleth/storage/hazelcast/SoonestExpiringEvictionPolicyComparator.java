@@ -0,0 +1,25 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.core.EntryView;
+import com.hazelcast.map.MapEvictionPolicyComparator;
+
+/**
+ * Eviction policy that evicts the entries closest to their expiration first, as they are the least valuable to keep,
+ * and entries without an expiration last. Entries expiring at the same time are evicted least recently used first.
+ * <p>
+ * Like all Hazelcast eviction policies it is applied to a sample of the entries of a partition, so the evicted entry is
+ * the soonest expiring of the sample.
+ */
+public class SoonestExpiringEvictionPolicyComparator implements MapEvictionPolicyComparator<Object, Object> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public int compare(EntryView<Object, Object> entry1, EntryView<Object, Object> entry2) {
+        int result = Long.compare(entry1.getExpirationTime(), entry2.getExpirationTime());
+        if (result != 0) {
+            return result;
+        }
+        return Long.compare(Math.max(entry1.getCreationTime(), entry1.getLastAccessTime()),
+                Math.max(entry2.getCreationTime(), entry2.getLastAccessTime()));
+    }
+}
@@ -0,0 +1,75 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.map.ExtendedMapEntry;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+import org.opensaml.storage.StorageRecord;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link EntryProcessor} that inserts new storage records with their own values and a common time to live for the
+ * keys it is executed on, skipping keys for which a record already exists. It is meant to be executed on the keys
+ * owned by a single member, so that each member only receives its own values.
+ * <p>
+ * The processor returns {@code true} for each record that was created and {@code false} if a record already existed.
+ */
+public class StorageRecordCreateAllProcessor implements EntryProcessor<Object, StorageRecord, Boolean>, DataSerializable {
+    private Map<Object, String> values;
+    private Long expiration;
+
+    /**
+     * Constructor used by Hazelcast for deserialization.
+     */
+    public StorageRecordCreateAllProcessor() {
+    }
+
+    /**
+     * @param values     the values of the records by map key
+     * @param expiration the expiration of the records
+     */
+    public StorageRecordCreateAllProcessor(Map<Object, String> values, Long expiration) {
+        this.values = values;
+        this.expiration = expiration;
+    }
+
+    @Override
+    public Boolean process(Map.Entry<Object, StorageRecord> entry) {
+        String value = values.get(entry.getKey());
+        if (value == null || entry.getValue() != null) {
+            return false;
+        }
+        StorageRecord record = new VersionMutableStorageRecord(value, expiration, 1L);
+        if (expiration != null) {
+            ((ExtendedMapEntry<Object, StorageRecord>) entry).setValue(record, AbstractHazelcastMapBackedStorageService.getSystemExpiration(expiration), TimeUnit.MILLISECONDS);
+        } else {
+            entry.setValue(record);
+        }
+        return true;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeInt(values.size());
+        for (Map.Entry<Object, String> value : values.entrySet()) {
+            out.writeObject(value.getKey());
+            out.writeString(value.getValue());
+        }
+        out.writeObject(expiration);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        int size = in.readInt();
+        values = new HashMap<>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            values.put(in.readObject(), in.readString());
+        }
+        expiration = in.readObject();
+    }
+}
@@ -0,0 +1,65 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.map.ExtendedMapEntry;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+import org.opensaml.storage.StorageRecord;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link EntryProcessor} that inserts a new storage record with its time to live if no record exists for the key.
+ * This is the asynchronous equivalent of {@link com.hazelcast.map.IMap#putIfAbsent(Object, Object, long, TimeUnit)},
+ * which has no asynchronous variant.
+ * <p>
+ * The processor returns {@code true} if the record was created and {@code false} if a record already existed.
+ */
+public class StorageRecordCreateProcessor implements EntryProcessor<Object, StorageRecord, Boolean>, DataSerializable {
+    private String value;
+    private Long expiration;
+
+    /**
+     * Constructor used by Hazelcast for deserialization.
+     */
+    public StorageRecordCreateProcessor() {
+    }
+
+    /**
+     * @param value      the value of the record
+     * @param expiration the expiration of the record
+     */
+    public StorageRecordCreateProcessor(String value, Long expiration) {
+        this.value = value;
+        this.expiration = expiration;
+    }
+
+    @Override
+    public Boolean process(Map.Entry<Object, StorageRecord> entry) {
+        if (entry.getValue() != null) {
+            return false;
+        }
+        StorageRecord record = new VersionMutableStorageRecord(value, expiration, 1L);
+        if (expiration != null) {
+            ((ExtendedMapEntry<Object, StorageRecord>) entry).setValue(record, AbstractHazelcastMapBackedStorageService.getSystemExpiration(expiration), TimeUnit.MILLISECONDS);
+        } else {
+            entry.setValue(record);
+        }
+        return true;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeString(value);
+        out.writeObject(expiration);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        value = in.readString();
+        expiration = in.readObject();
+    }
+}
@@ -0,0 +1,60 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+import org.opensaml.storage.StorageRecord;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * {@link EntryProcessor} that removes a storage record, optionally only if it has the expected version. The check
+ * and the removal happen in a single operation on the member that owns the entry and the value is never sent back.
+ * <p>
+ * The processor returns {@code null} if the record does not exist,
+ * {@link StorageRecordUpdateProcessor#VERSION_MISMATCH} if a version was supplied and does not match the stored
+ * record, and the version of the removed record otherwise.
+ */
+public class StorageRecordDeleteProcessor implements EntryProcessor<Object, StorageRecord, Long>, DataSerializable {
+    private Long version;
+
+    /**
+     * Constructor used by Hazelcast for deserialization.
+     */
+    public StorageRecordDeleteProcessor() {
+    }
+
+    /**
+     * @param version the expected version of the record, or {@code null} to remove the record unconditionally
+     */
+    public StorageRecordDeleteProcessor(Long version) {
+        this.version = version;
+    }
+
+    @Override
+    public Long process(Map.Entry<Object, StorageRecord> entry) {
+        StorageRecord record = entry.getValue();
+        if (record == null) {
+            return null;
+        }
+
+        if (version != null && version != record.getVersion()) {
+            return StorageRecordUpdateProcessor.VERSION_MISMATCH;
+        }
+
+        entry.setValue(null);
+        return record.getVersion();
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeObject(version);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        version = in.readObject();
+    }
+}
@@ -0,0 +1,32 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import org.opensaml.storage.StorageRecord;
+
+import java.util.Map;
+
+/**
+ * {@link StorageRecordUpdateProcessor} that only updates the expiration and discards the result. Intended for
+ * context-wide updates through {@link com.hazelcast.map.IMap#executeOnEntries}, where Hazelcast leaves {@code null}
+ * results out of the response instead of sending back every key.
+ */
+public class StorageRecordExpirationProcessor extends StorageRecordUpdateProcessor {
+
+    /**
+     * Constructor used by Hazelcast for deserialization.
+     */
+    public StorageRecordExpirationProcessor() {
+    }
+
+    /**
+     * @param expiration the new expiration of the records
+     */
+    public StorageRecordExpirationProcessor(Long expiration) {
+        super(null, null, expiration);
+    }
+
+    @Override
+    public Long process(Map.Entry<Object, StorageRecord> entry) {
+        super.process(entry);
+        return null;
+    }
+}
@@ -0,0 +1,38 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import org.opensaml.storage.StorageRecord;
+
+import java.util.Map;
+
+/**
+ * {@link StorageRecordUpdateProcessor} that only ever extends the expiration of a record. A record that does not
+ * expire or already expires at or after the requested time is left untouched, so a delayed extension can never
+ * shorten an expiration written since.
+ */
+public class StorageRecordExtendProcessor extends StorageRecordUpdateProcessor {
+
+    /**
+     * Constructor used by Hazelcast for deserialization.
+     */
+    public StorageRecordExtendProcessor() {
+    }
+
+    /**
+     * @param expiration the expiration to extend the record to
+     */
+    public StorageRecordExtendProcessor(long expiration) {
+        super(null, null, expiration);
+    }
+
+    @Override
+    public Long process(Map.Entry<Object, StorageRecord> entry) {
+        StorageRecord record = entry.getValue();
+        if (record == null) {
+            return null;
+        }
+        if (record.getExpiration() == null || record.getExpiration() >= getExpiration()) {
+            return record.getVersion();
+        }
+        return super.process(entry);
+    }
+}
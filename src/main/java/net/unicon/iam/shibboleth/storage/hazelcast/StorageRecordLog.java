@@ -0,0 +1,325 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of storage record writes and deletes in a directory, kept in memory mapped segment files.
+ * <p>
+ * Each entry is written as its length, a CRC32 of its body and the body: the time of the write, the expiration of the
+ * record, the entry type, the serialized key and the serialized record. The length is written last and segments are
+ * zero filled, so a torn write ends the segment when it is read back. Segments written by earlier processes are kept
+ * apart from the segments of this process until they are no longer needed.
+ * <p>
+ * Segments are read into heap buffers, but the segment being written is memory mapped, and Java only unmaps a buffer
+ * once it is garbage collected. Deleting a compacted segment that is still mapped succeeds on Linux and other POSIX
+ * systems, where the space is freed once the mapping goes, but fails on Windows, where the log is not supported.
+ * <p>
+ * Not thread-safe; writes are expected from a single thread at a time.
+ */
+class StorageRecordLog implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(StorageRecordLog.class);
+
+    static final byte TYPE_STORE = 1;
+    static final byte TYPE_DELETE = 2;
+
+    private static final String SUFFIX = ".log";
+    private static final int HEADER_SIZE = 8;
+    private static final int BODY_PREFIX_SIZE = 8 + 8 + 1 + 4;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final boolean force;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final List<Path> previousSegments;
+    private final List<Path> segments = new ArrayList<>();
+    private final long startTime = System.currentTimeMillis();
+    private int sequence;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    /**
+     * An entry read from the log.
+     */
+    static class Entry {
+        final long timestamp;
+        final long expiration;
+        final byte type;
+        final byte[] key;
+        final byte[] value;
+
+        Entry(long timestamp, long expiration, byte type, byte[] key, byte[] value) {
+            this.timestamp = timestamp;
+            this.expiration = expiration;
+            this.type = type;
+            this.key = key;
+            this.value = value;
+        }
+
+        boolean isLive(long now) {
+            return this.type == TYPE_STORE && (this.expiration == 0 || this.expiration > now);
+        }
+    }
+
+    /**
+     * @param directory   the directory of the log, which must not be used by any other process
+     * @param segmentSize the size in bytes of each segment file
+     * @param force       whether to force every batch of entries to disk
+     */
+    StorageRecordLog(Path directory, int segmentSize, boolean force) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.force = force;
+        Files.createDirectories(directory);
+        this.lockChannel = FileChannel.open(directory.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.lock = this.lockChannel.tryLock();
+        if (this.lock == null) {
+            this.lockChannel.close();
+            throw new IOException("Storage record log " + directory + " is in use by another process");
+        }
+        this.previousSegments = Collections.unmodifiableList(listSegments());
+    }
+
+    private List<Path> listSegments() throws IOException {
+        List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, "*" + SUFFIX)) {
+            for (Path path : stream) {
+                result.add(path);
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * @return the segments written by earlier processes, oldest first
+     */
+    List<Path> getPreviousSegments() {
+        return this.previousSegments;
+    }
+
+    /**
+     * @return the number of segments written by this process that are complete
+     */
+    int getSealedSegmentCount() {
+        return this.buffer != null ? this.segments.size() - 1 : this.segments.size();
+    }
+
+    /**
+     * Append a write to the log.
+     *
+     * @param expiration the expiration of the record, {@code 0} for none
+     */
+    void appendStore(long timestamp, long expiration, byte[] key, byte[] value) throws IOException {
+        append(timestamp, expiration, TYPE_STORE, key, value);
+    }
+
+    /**
+     * Append a delete to the log.
+     */
+    void appendDelete(long timestamp, byte[] key) throws IOException {
+        append(timestamp, 0, TYPE_DELETE, key, new byte[0]);
+    }
+
+    private void append(long timestamp, long expiration, byte type, byte[] key, byte[] value) throws IOException {
+        int bodyLength = BODY_PREFIX_SIZE + key.length + value.length;
+        if (this.buffer == null || this.buffer.remaining() < HEADER_SIZE + bodyLength) {
+            openSegment(HEADER_SIZE + bodyLength);
+        }
+        int position = this.buffer.position();
+        this.buffer.position(position + HEADER_SIZE);
+        this.buffer.putLong(timestamp);
+        this.buffer.putLong(expiration);
+        this.buffer.put(type);
+        this.buffer.putInt(key.length);
+        this.buffer.put(key);
+        this.buffer.put(value);
+
+        CRC32 crc = new CRC32();
+        ByteBuffer body = this.buffer.duplicate();
+        body.position(position + HEADER_SIZE);
+        body.limit(position + HEADER_SIZE + bodyLength);
+        crc.update(body);
+        this.buffer.putInt(position + 4, (int) crc.getValue());
+        // the length goes last, so an entry is only visible once it is complete
+        this.buffer.putInt(position, bodyLength);
+    }
+
+    /**
+     * Make the appended entries durable, if configured to.
+     */
+    void flush() {
+        if (this.force && this.buffer != null) {
+            this.buffer.force();
+        }
+    }
+
+    private void openSegment(int minimumSize) throws IOException {
+        closeSegment();
+        Path path = this.directory.resolve(String.format("%013d-%06d%s", this.startTime, this.sequence++, SUFFIX));
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(this.segmentSize, minimumSize));
+        this.segments.add(path);
+    }
+
+    private void closeSegment() throws IOException {
+        if (this.buffer != null) {
+            this.buffer.force();
+            this.buffer = null;
+            this.channel.close();
+            this.channel = null;
+        }
+    }
+
+    /**
+     * Read the latest entry of every key in the given segments, in which later entries win over earlier ones with the
+     * same or an older timestamp.
+     *
+     * @param paths the segments to read, oldest first
+     * @return the latest entries by serialized key
+     */
+    static Map<ByteBuffer, Entry> readLatest(Collection<Path> paths) throws IOException {
+        Map<ByteBuffer, Entry> latest = new HashMap<>();
+        for (Path path : paths) {
+            for (Iterator<Entry> entries = read(path); entries.hasNext(); ) {
+                Entry entry = entries.next();
+                latest.merge(ByteBuffer.wrap(entry.key), entry, (current, next) -> next.timestamp >= current.timestamp ? next : current);
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Read the complete entries of a segment.
+     */
+    static Iterator<Entry> read(Path path) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // read rather than mapped, so the file can be deleted without waiting for the buffer to be collected
+            buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+        }
+        return new Iterator<Entry>() {
+            private Entry next = advance();
+
+            private Entry advance() {
+                if (buffer.remaining() < HEADER_SIZE) {
+                    return null;
+                }
+                int position = buffer.position();
+                int bodyLength = buffer.getInt();
+                int crc = buffer.getInt();
+                if (bodyLength < BODY_PREFIX_SIZE || bodyLength > buffer.remaining()) {
+                    return null;
+                }
+                ByteBuffer body = buffer.slice();
+                body.limit(bodyLength);
+                CRC32 checksum = new CRC32();
+                checksum.update(body.duplicate());
+                if ((int) checksum.getValue() != crc) {
+                    logger.warn("Corrupt entry at {} in storage record log {}, ignoring the rest of the segment", position, path);
+                    return null;
+                }
+                long timestamp = body.getLong();
+                long expiration = body.getLong();
+                byte type = body.get();
+                int keyLength = body.getInt();
+                if (keyLength < 0 || keyLength > body.remaining()) {
+                    return null;
+                }
+                byte[] key = new byte[keyLength];
+                body.get(key);
+                byte[] value = new byte[body.remaining()];
+                body.get(value);
+                buffer.position(position + HEADER_SIZE + bodyLength);
+                return new Entry(timestamp, expiration, type, key, value);
+            }
+
+            @Override
+            public boolean hasNext() {
+                return this.next != null;
+            }
+
+            @Override
+            public Entry next() {
+                Entry entry = this.next;
+                this.next = advance();
+                return entry;
+            }
+        };
+    }
+
+    /**
+     * Delete the segments written by earlier processes, once their entries have been written again.
+     */
+    void deletePreviousSegments() throws IOException {
+        for (Path path : this.previousSegments) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Rewrite the complete segments of this process into new segments holding only the latest entry of every live
+     * record. Deletes are dropped, so this must only be done once no earlier segments remain.
+     *
+     * @return the number of complete segments left
+     */
+    int compact() throws IOException {
+        List<Path> sealed = new ArrayList<>(this.segments.subList(0, getSealedSegmentCount()));
+        if (sealed.isEmpty()) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        Map<ByteBuffer, Entry> latest = readLatest(sealed);
+        // start a new segment so that the current one, which may hold newer entries, is not rewritten
+        closeSegment();
+        int live = 0;
+        for (Entry entry : latest.values()) {
+            if (entry.isLive(now)) {
+                append(entry.timestamp, entry.expiration, entry.type, entry.key, entry.value);
+                live++;
+            }
+        }
+        closeSegment();
+        for (Path path : sealed) {
+            Files.deleteIfExists(path);
+        }
+        this.segments.removeAll(sealed);
+        logger.debug("Compacted {} segments of storage record log {} to {} records", sealed.size(), this.directory, live);
+        return getSealedSegmentCount();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            closeSegment();
+        } finally {
+            this.lock.release();
+            this.lockChannel.close();
+        }
+    }
+}
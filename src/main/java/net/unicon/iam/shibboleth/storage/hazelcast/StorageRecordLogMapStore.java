@@ -0,0 +1,308 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.MapStoreConfig;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceNotActiveException;
+import com.hazelcast.internal.serialization.Data;
+import com.hazelcast.internal.serialization.SerializationService;
+import com.hazelcast.internal.serialization.impl.HeapData;
+import com.hazelcast.map.IMap;
+import com.hazelcast.map.MapLoaderLifecycleSupport;
+import com.hazelcast.map.MapStore;
+import com.hazelcast.spi.impl.SerializationServiceSupport;
+import org.opensaml.storage.StorageRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link MapStore} that keeps the storage records of a map in an append-only, memory mapped log on the local disk of
+ * each member, so that the records survive a restart of the whole cluster.
+ * <p>
+ * Besides the maps of storage records it persists the other maps of the storage services: the maps of the
+ * {@link ReplayCacheStorageService}, whose values are expirations, and the companion maps of value chunks and
+ * secondary indexes. The expiration of each value is taken from its class, see {@link #getExpiration(Object)}.
+ * <p>
+ * The store must be configured for write-behind, which takes all disk I/O off the write path: Hazelcast hands the
+ * changed records to {@link #storeAll(Map)} and {@link #deleteAll(Collection)} in batches from a background thread.
+ * Expired records are not deleted by Hazelcast; they are skipped when the log is read and dropped when it is compacted.
+ * <p>
+ * Each member writes the records of the partitions it owns to its own directory. Hazelcast loads the keys of a map
+ * through a single member, which cannot see the logs of the others, so the records are not loaded through
+ * {@link #loadAllKeys()}. Instead, when the map is created on a member the log left by the previous run of that member
+ * is replayed into the cluster in the background, in parallel batches per partition, skipping expired records and
+ * never replacing a record with an older version. The replayed records are written to the logs of their new owners,
+ * after which the old log is deleted.
+ * <p>
+ * Records deleted after their partition migrated to another member may come back from the log of the previous owner
+ * until they expire, since the delete is only logged by the new owner.
+ * <p>
+ * The store reads the following properties of its {@link MapStoreConfig}:
+ * <ul>
+ *     <li>{@value #DIRECTORY_PROPERTY}: the directory of the logs, in which a subdirectory is used per map. Required,
+ *     and must not be shared with other members.</li>
+ *     <li>{@value #SEGMENT_SIZE_PROPERTY}: the size in bytes of each log segment, 64 MB by default.</li>
+ *     <li>{@value #MAX_SEGMENTS_PROPERTY}: the number of complete segments after which the log is compacted, 4 by
+ *     default. Once a compaction leaves more live segments than half of it, the log is compacted when it has grown
+ *     to twice the segments left by the last compaction instead, so large live sets are not rewritten on every
+ *     batch.</li>
+ *     <li>{@value #FORCE_PROPERTY}: whether each batch is forced to disk, protecting against operating system
+ *     crashes at the cost of disk syncs on the write-behind thread. False by default.</li>
+ * </ul>
+ */
+public class StorageRecordLogMapStore implements MapStore<Object, Object>, MapLoaderLifecycleSupport {
+    private static final Logger logger = LoggerFactory.getLogger(StorageRecordLogMapStore.class);
+
+    public static final String DIRECTORY_PROPERTY = "directory";
+    public static final String SEGMENT_SIZE_PROPERTY = "segmentSize";
+    public static final String MAX_SEGMENTS_PROPERTY = "maxSegments";
+    public static final String FORCE_PROPERTY = "force";
+
+    private static final int REPLAY_BATCH_SIZE = 1000;
+
+    private HazelcastInstance hazelcastInstance;
+    private SerializationService serializationService;
+    private String mapName;
+    private int maxSegments;
+    private int compactionThreshold;
+    private StorageRecordLog log;
+    private long lastTimestamp;
+    private volatile boolean replayed;
+    private Thread replayThread;
+
+    /**
+     * Create a configuration for this store with write-behind.
+     *
+     * @param directory         the directory of the logs
+     * @param writeDelaySeconds the delay in seconds after which changed records are written
+     * @return the configuration
+     */
+    public static MapStoreConfig newMapStoreConfig(String directory, int writeDelaySeconds) {
+        return new MapStoreConfig()
+                .setEnabled(true)
+                .setClassName(StorageRecordLogMapStore.class.getName())
+                .setWriteDelaySeconds(writeDelaySeconds)
+                .setWriteBatchSize(1000)
+                .setWriteCoalescing(true)
+                .setProperty(DIRECTORY_PROPERTY, directory);
+    }
+
+    @Override
+    public void init(HazelcastInstance hazelcastInstance, Properties properties, String mapName) {
+        String directory = properties.getProperty(DIRECTORY_PROPERTY);
+        if (directory == null) {
+            throw new IllegalArgumentException("The " + DIRECTORY_PROPERTY + " property of the storage record map store of map " + mapName + " is not set");
+        }
+        this.hazelcastInstance = hazelcastInstance;
+        this.serializationService = ((SerializationServiceSupport) hazelcastInstance).getSerializationService();
+        this.mapName = mapName;
+        this.maxSegments = Integer.parseInt(properties.getProperty(MAX_SEGMENTS_PROPERTY, "4"));
+        this.compactionThreshold = this.maxSegments;
+
+        MapConfig mapConfig = hazelcastInstance.getConfig().getMapConfigOrNull(mapName);
+        if (mapConfig != null && mapConfig.getMapStoreConfig().getWriteDelaySeconds() <= 0) {
+            logger.warn("The storage record map store of map {} is configured for write-through, which writes to disk on every change", mapName);
+        }
+
+        Path path = Paths.get(directory, mapName);
+        try {
+            this.log = new StorageRecordLog(path, Integer.parseInt(properties.getProperty(SEGMENT_SIZE_PROPERTY, Integer.toString(64 * 1024 * 1024))),
+                    Boolean.parseBoolean(properties.getProperty(FORCE_PROPERTY, "false")));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open storage record log " + path, e);
+        }
+
+        if (this.log.getPreviousSegments().isEmpty()) {
+            this.replayed = true;
+        } else {
+            // map operations must not be invoked from the thread creating the map
+            this.replayThread = new Thread(this::replay, "hazelcast-storage-replay-" + mapName);
+            this.replayThread.setDaemon(true);
+            this.replayThread.start();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (this.replayThread != null) {
+            this.replayThread.interrupt();
+        }
+        synchronized (this) {
+            try {
+                this.log.close();
+            } catch (IOException e) {
+                logger.warn("Problem closing storage record log of map {}", this.mapName, e);
+            }
+        }
+    }
+
+    /**
+     * Write the records of the previous log into the cluster, then delete it.
+     */
+    private void replay() {
+        try {
+            long now = System.currentTimeMillis();
+            List<Path> segments = this.log.getPreviousSegments();
+            Map<ByteBuffer, StorageRecordLog.Entry> latest = StorageRecordLog.readLatest(segments);
+
+            IMap<Object, Object> map = this.hazelcastInstance.getMap(this.mapName);
+            Map<Integer, Map<Object, Object>> byPartition = new HashMap<>();
+            List<CompletableFuture<Map<Object, Boolean>>> futures = new ArrayList<>();
+            int count = 0;
+            for (StorageRecordLog.Entry entry : latest.values()) {
+                if (!entry.isLive(now)) {
+                    continue;
+                }
+                Object key = this.serializationService.toObject(new HeapData(entry.key));
+                Object value = this.serializationService.toObject(new HeapData(entry.value));
+                int partitionId = this.hazelcastInstance.getPartitionService().getPartition(key).getPartitionId();
+                Map<Object, Object> batch = byPartition.computeIfAbsent(partitionId, id -> new HashMap<>());
+                batch.put(key, value);
+                if (batch.size() >= REPLAY_BATCH_SIZE) {
+                    futures.add(map.submitToKeys(batch.keySet(), new StorageRecordRestoreProcessor(batch)).toCompletableFuture());
+                    byPartition.remove(partitionId);
+                }
+                count++;
+            }
+            for (Map<Object, Object> batch : byPartition.values()) {
+                futures.add(map.submitToKeys(batch.keySet(), new StorageRecordRestoreProcessor(batch)).toCompletableFuture());
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+
+            // the restored records are now queued for the logs of their owners
+            map.flush();
+            synchronized (this) {
+                this.log.deletePreviousSegments();
+                this.replayed = true;
+            }
+            logger.info("Restored {} records of map {} from {} log segments", count, this.mapName, segments.size());
+        } catch (HazelcastInstanceNotActiveException e) {
+            logger.debug("Hazelcast shut down while restoring map {}", this.mapName);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Unable to restore the records of map {}, the log is kept for the next start", this.mapName, e);
+        }
+    }
+
+    /**
+     * @return whether the records of the previous log have been restored
+     */
+    public boolean isReplayed() {
+        return this.replayed;
+    }
+
+    /**
+     * Get the expiration of a value of one of the maps of the storage services.
+     *
+     * @param value a storage record, a replay cache expiration, a value chunk or a secondary index entry
+     * @return the expiration, or null if the value never expires
+     */
+    @Nullable
+    static Long getExpiration(Object value) {
+        if (value instanceof StorageRecord) {
+            return ((StorageRecord) value).getExpiration();
+        }
+        if (value instanceof ValueChunk) {
+            return ((ValueChunk) value).getExpiration();
+        }
+        if (value instanceof Long) {
+            // the replay cache stores the expiration itself, 0 for none
+            return (Long) value != 0 ? (Long) value : null;
+        }
+        return null;
+    }
+
+    private long nextTimestamp() {
+        // strictly increasing, so the order of the entries of this process never depends on the clock resolution
+        this.lastTimestamp = Math.max(System.currentTimeMillis(), this.lastTimestamp + 1);
+        return this.lastTimestamp;
+    }
+
+    private byte[] toBytes(Object object) {
+        Data data = this.serializationService.toData(object);
+        return data.toByteArray();
+    }
+
+    @Override
+    public void store(Object key, Object value) {
+        storeAll(Collections.singletonMap(key, value));
+    }
+
+    @Override
+    public synchronized void storeAll(Map<Object, Object> map) {
+        try {
+            for (Map.Entry<Object, Object> entry : map.entrySet()) {
+                Long expiration = getExpiration(entry.getValue());
+                this.log.appendStore(nextTimestamp(), expiration != null ? expiration : 0, toBytes(entry.getKey()), toBytes(entry.getValue()));
+            }
+            afterWrite();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write to the storage record log of map " + this.mapName, e);
+        }
+    }
+
+    @Override
+    public void delete(Object key) {
+        deleteAll(Collections.singletonList(key));
+    }
+
+    @Override
+    public synchronized void deleteAll(Collection<Object> keys) {
+        try {
+            for (Object key : keys) {
+                this.log.appendDelete(nextTimestamp(), toBytes(key));
+            }
+            afterWrite();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write to the storage record log of map " + this.mapName, e);
+        }
+    }
+
+    private void afterWrite() throws IOException {
+        this.log.flush();
+        // deletes can only be dropped once the previous log, which may hold older versions, is gone
+        if (this.replayed && this.log.getSealedSegmentCount() >= this.compactionThreshold) {
+            int compacted = this.log.compact();
+            this.compactionThreshold = Math.max(this.maxSegments, 2 * compacted);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Records are never loaded on demand, so this returns null without touching the disk.
+     */
+    @Override
+    public Object load(Object key) {
+        return null;
+    }
+
+    @Override
+    public Map<Object, Object> loadAll(Collection<Object> keys) {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Records are restored by replaying the log of each member instead.
+     */
+    @Override
+    public Iterable<Object> loadAllKeys() {
+        return Collections.emptySet();
+    }
+}
@@ -0,0 +1,62 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.core.ReadOnly;
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+import org.opensaml.storage.StorageRecord;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Read-only {@link EntryProcessor} that compares the version of a storage record on the member that owns it, so the
+ * value is only sent over the wire when it has changed.
+ * <p>
+ * The processor returns {@code null} if the record does not exist, the version as a {@link Long} if it matches the
+ * supplied version, and the full {@link StorageRecord} otherwise.
+ */
+public class StorageRecordReadProcessor implements EntryProcessor<Object, StorageRecord, Object>, ReadOnly, DataSerializable {
+    private long version;
+
+    /**
+     * Constructor used by Hazelcast for deserialization.
+     */
+    public StorageRecordReadProcessor() {
+    }
+
+    /**
+     * @param version the version of the record known to the caller
+     */
+    public StorageRecordReadProcessor(long version) {
+        this.version = version;
+    }
+
+    @Override
+    public Object process(Map.Entry<Object, StorageRecord> entry) {
+        StorageRecord record = entry.getValue();
+        if (record == null) {
+            return null;
+        }
+        if (record.getVersion() == version) {
+            return version;
+        }
+        return record;
+    }
+
+    @Override
+    public EntryProcessor<Object, StorageRecord, Object> getBackupProcessor() {
+        return null;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeLong(version);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        version = in.readLong();
+    }
+}
@@ -0,0 +1,63 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.map.ExtendedMapEntry;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+import org.opensaml.storage.StorageRecord;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link EntryProcessor} that replaces a storage record only if it still has the value, version and expiration that
+ * were read, and sets the time to live of the new record in the same operation. It is the compare-and-set of the
+ * optimistic update mode.
+ * <p>
+ * The processor returns {@code true} if the record was replaced.
+ */
+public class StorageRecordReplaceProcessor implements EntryProcessor<Object, StorageRecord, Boolean>, DataSerializable {
+    private StorageRecord expected;
+    private StorageRecord updated;
+
+    /**
+     * Constructor used by Hazelcast for deserialization.
+     */
+    public StorageRecordReplaceProcessor() {
+    }
+
+    /**
+     * @param expected the record that was read
+     * @param updated  the record to replace it with
+     */
+    public StorageRecordReplaceProcessor(StorageRecord expected, StorageRecord updated) {
+        this.expected = expected;
+        this.updated = updated;
+    }
+
+    @Override
+    public Boolean process(Map.Entry<Object, StorageRecord> entry) {
+        StorageRecord record = entry.getValue();
+        if (record == null || record.getVersion() != expected.getVersion() || !Objects.equals(record.getValue(), expected.getValue())
+                || !Objects.equals(record.getExpiration(), expected.getExpiration())) {
+            return false;
+        }
+        ((ExtendedMapEntry<Object, StorageRecord>) entry).setValue(updated, AbstractHazelcastMapBackedStorageService.getSystemExpiration(updated.getExpiration()), TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeObject(expected);
+        out.writeObject(updated);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        expected = in.readObject();
+        updated = in.readObject();
+    }
+}
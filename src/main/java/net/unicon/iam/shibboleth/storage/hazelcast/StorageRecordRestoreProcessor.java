@@ -0,0 +1,81 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.map.ExtendedMapEntry;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+import org.opensaml.storage.StorageRecord;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link EntryProcessor} that restores the values of the storage service maps from persistent storage, keeping their
+ * expirations. A storage record is restored if no record exists for its key or the existing one has an older version,
+ * so the newest copy wins when several copies of a record are restored. Other values, which have no version, are
+ * only restored if no value exists for their key. Expirations are read with
+ * {@link StorageRecordLogMapStore#getExpiration(Object)}.
+ * <p>
+ * The processor returns {@code true} for each value that was restored.
+ */
+public class StorageRecordRestoreProcessor implements EntryProcessor<Object, Object, Boolean>, DataSerializable {
+    private Map<Object, Object> records;
+
+    /**
+     * Constructor used by Hazelcast for deserialization.
+     */
+    public StorageRecordRestoreProcessor() {
+    }
+
+    /**
+     * @param records the values to restore by map key
+     */
+    public StorageRecordRestoreProcessor(Map<Object, Object> records) {
+        this.records = records;
+    }
+
+    @Override
+    public Boolean process(Map.Entry<Object, Object> entry) {
+        Object record = records.get(entry.getKey());
+        if (record == null || (entry.getValue() != null && !isNewer(record, entry.getValue()))) {
+            return false;
+        }
+        Long expiration = StorageRecordLogMapStore.getExpiration(record);
+        if (expiration != null) {
+            long ttl = AbstractHazelcastMapBackedStorageService.getSystemExpiration(expiration);
+            if (ttl <= 0) {
+                return false;
+            }
+            ((ExtendedMapEntry<Object, Object>) entry).setValue(record, ttl, TimeUnit.MILLISECONDS);
+        } else {
+            entry.setValue(record);
+        }
+        return true;
+    }
+
+    private static boolean isNewer(Object record, Object existing) {
+        return record instanceof StorageRecord && existing instanceof StorageRecord
+                && ((StorageRecord) existing).getVersion() < ((StorageRecord) record).getVersion();
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeInt(records.size());
+        for (Map.Entry<Object, Object> record : records.entrySet()) {
+            out.writeObject(record.getKey());
+            out.writeObject(record.getValue());
+        }
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        int size = in.readInt();
+        records = new HashMap<>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            records.put(in.readObject(), in.readObject());
+        }
+    }
+}
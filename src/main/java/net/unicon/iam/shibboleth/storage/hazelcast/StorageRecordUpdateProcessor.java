@@ -0,0 +1,88 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.map.ExtendedMapEntry;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+import org.opensaml.storage.StorageRecord;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link EntryProcessor} that performs the version check, value change, version increment and expiration reset of a
+ * storage record in a single operation on the member that owns the entry.
+ * <p>
+ * The processor returns {@code null} if the record does not exist, {@link #VERSION_MISMATCH} if a version was
+ * supplied and does not match the stored record, and the (possibly incremented) version of the record otherwise.
+ */
+public class StorageRecordUpdateProcessor implements EntryProcessor<Object, StorageRecord, Long>, DataSerializable {
+    /**
+     * Result returned when the supplied version does not match the version of the stored record.
+     */
+    public static final long VERSION_MISMATCH = -1L;
+
+    private Long version;
+    private String value;
+    private Long expiration;
+
+    /**
+     * Constructor used by Hazelcast for deserialization.
+     */
+    public StorageRecordUpdateProcessor() {
+    }
+
+    /**
+     * @param version    the expected version of the record, or {@code null} to skip the version check
+     * @param value      the new value of the record, or {@code null} to only update the expiration
+     * @param expiration the new expiration of the record
+     */
+    public StorageRecordUpdateProcessor(Long version, String value, Long expiration) {
+        this.version = version;
+        this.value = value;
+        this.expiration = expiration;
+    }
+
+    protected Long getExpiration() {
+        return this.expiration;
+    }
+
+    @Override
+    public Long process(Map.Entry<Object, StorageRecord> entry) {
+        StorageRecord record = entry.getValue();
+        if (record == null) {
+            return null;
+        }
+
+        if (version != null && version != record.getVersion()) {
+            return VERSION_MISMATCH;
+        }
+
+        // never mutate the stored instance, build a new record instead
+        VersionMutableStorageRecord updated;
+        if (value != null) {
+            updated = new VersionMutableStorageRecord(value, expiration, record.getVersion() + 1);
+        } else {
+            updated = new VersionMutableStorageRecord(record.getValue(), expiration, record.getVersion());
+        }
+
+        ((ExtendedMapEntry<Object, StorageRecord>) entry).setValue(updated, AbstractHazelcastMapBackedStorageService.getSystemExpiration(expiration), TimeUnit.MILLISECONDS);
+        return updated.getVersion();
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeObject(version);
+        out.writeString(value);
+        out.writeObject(expiration);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        version = in.readObject();
+        value = in.readString();
+        expiration = in.readObject();
+    }
+}
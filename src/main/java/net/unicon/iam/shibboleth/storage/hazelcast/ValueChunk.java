@@ -0,0 +1,71 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Value of the companion chunk map of a storage map: a chunk of a large record value with the expiration of its
+ * record. The expiration is kept with the chunk, and not only as its time to live, so that a {@link com.hazelcast.map.MapStore}
+ * such as {@link StorageRecordLogMapStore} can persist and restore it.
+ */
+public class ValueChunk implements DataSerializable {
+    private String value;
+    private Long expiration;
+
+    /**
+     * Constructor used by Hazelcast for deserialization.
+     */
+    public ValueChunk() {
+    }
+
+    public ValueChunk(String value, @Nullable Long expiration) {
+        this.value = value;
+        this.expiration = expiration;
+    }
+
+    public String getValue() {
+        return this.value;
+    }
+
+    /**
+     * @return the expiration of the record the chunk belongs to, or null for none
+     */
+    @Nullable
+    public Long getExpiration() {
+        return this.expiration;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeString(this.value);
+        out.writeObject(this.expiration);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        this.value = in.readString();
+        this.expiration = in.readObject();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ValueChunk)) {
+            return false;
+        }
+        ValueChunk other = (ValueChunk) obj;
+        return this.value.equals(other.value) && Objects.equals(this.expiration, other.expiration);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.value.hashCode();
+    }
+}
@@ -0,0 +1,53 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+/**
+ * Key of a chunk of a large record value in the companion chunk map of a storage map. The token identifies the write
+ * the chunk belongs to, so the chunks of a value that is being replaced are never mixed with those of its successor.
+ * The context is exposed as the {@code __key.context} attribute for context-wide operations.
+ */
+public class ValueChunkKey {
+    private final String context;
+    private final String key;
+    private final long token;
+    private final int index;
+
+    public ValueChunkKey(String context, String key, long token, int index) {
+        this.context = context;
+        this.key = key;
+        this.token = token;
+        this.index = index;
+    }
+
+    public String getContext() {
+        return this.context;
+    }
+
+    public String getKey() {
+        return this.key;
+    }
+
+    public long getToken() {
+        return this.token;
+    }
+
+    public int getIndex() {
+        return this.index;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * this.key.hashCode() + Long.hashCode(this.token)) + this.index;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ValueChunkKey)) {
+            return false;
+        }
+        ValueChunkKey that = (ValueChunkKey) obj;
+        return this.token == that.token && this.index == that.index && this.context.equals(that.context) && this.key.equals(that.key);
+    }
+}
@@ -0,0 +1,41 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.StreamSerializer;
+
+import java.io.IOException;
+
+/**
+ * Serializer for {@link ValueChunkKey}, which writes the fields directly instead of using Java serialization.
+ */
+public class ValueChunkKeySerializer implements StreamSerializer<ValueChunkKey> {
+    public static final int TYPE_ID = 12348;
+
+    @Override
+    public void write(ObjectDataOutput out, ValueChunkKey object) throws IOException {
+        out.writeString(object.getContext());
+        out.writeString(object.getKey());
+        out.writeLong(object.getToken());
+        out.writeInt(object.getIndex());
+    }
+
+    @Override
+    public ValueChunkKey read(ObjectDataInput in) throws IOException {
+        String context = in.readString();
+        String key = in.readString();
+        long token = in.readLong();
+        int index = in.readInt();
+        return new ValueChunkKey(context, key, token, index);
+    }
+
+    @Override
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    @Override
+    public void destroy() {
+
+    }
+}
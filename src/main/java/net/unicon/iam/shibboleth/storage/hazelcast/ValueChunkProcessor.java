@@ -0,0 +1,62 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.map.ExtendedMapEntry;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link EntryProcessor} that sets the expiration and time to live of value chunks to the expiration of their record, or removes
+ * them. Unlike {@link com.hazelcast.map.IMap#removeAsync(Object)} the chunk is never sent back. The result is always
+ * {@code null}, so executions on many entries send no keys back.
+ */
+public class ValueChunkProcessor implements EntryProcessor<Object, ValueChunk, Object>, DataSerializable {
+    private Long expiration;
+    private boolean remove;
+
+    /**
+     * Constructor used by Hazelcast for deserialization.
+     */
+    public ValueChunkProcessor() {
+    }
+
+    /**
+     * @param expiration the expiration of the record the chunks belong to, or null for none
+     * @param remove     whether to remove the chunks instead
+     */
+    public ValueChunkProcessor(Long expiration, boolean remove) {
+        this.expiration = expiration;
+        this.remove = remove;
+    }
+
+    @Override
+    public Object process(Map.Entry<Object, ValueChunk> entry) {
+        if (entry.getValue() == null) {
+            return null;
+        }
+        if (this.remove) {
+            entry.setValue(null);
+        } else {
+            ((ExtendedMapEntry<Object, ValueChunk>) entry).setValue(new ValueChunk(entry.getValue().getValue(), this.expiration),
+                    AbstractHazelcastMapBackedStorageService.getChunkTimeToLive(this.expiration), TimeUnit.MILLISECONDS);
+        }
+        return null;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeObject(this.expiration);
+        out.writeBoolean(this.remove);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        this.expiration = in.readObject();
+        this.remove = in.readBoolean();
+    }
+}
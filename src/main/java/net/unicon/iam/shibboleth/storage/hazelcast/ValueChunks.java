@@ -0,0 +1,58 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits large values into chunks and describes them in the header stored as the value of their record.
+ * <p>
+ * A header is {@value #HEADER_PREFIX} followed by the token of the write and the number of chunks, separated by a
+ * colon. No value written by the IdP starts with a NUL character, and values that start with the header prefix are
+ * rejected when chunking is enabled, so headers cannot be confused with values.
+ */
+final class ValueChunks {
+    static final String HEADER_PREFIX = "\u0000chunks:";
+
+    private ValueChunks() {
+    }
+
+    static boolean isHeader(String value) {
+        return value != null && value.startsWith(HEADER_PREFIX);
+    }
+
+    static String header(long token, int count) {
+        return HEADER_PREFIX + token + ":" + count;
+    }
+
+    /**
+     * @return the keys of the chunks described by the header, in order
+     */
+    static List<ValueChunkKey> keys(String context, String key, String header) {
+        int separator = header.indexOf(':', HEADER_PREFIX.length());
+        long token = Long.parseLong(header.substring(HEADER_PREFIX.length(), separator));
+        int count = Integer.parseInt(header.substring(separator + 1));
+        List<ValueChunkKey> keys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            keys.add(new ValueChunkKey(context, key, token, i));
+        }
+        return keys;
+    }
+
+    /**
+     * Split a value into chunks of at most the given number of characters, never between the two halves of a
+     * surrogate pair, which would not survive being encoded separately.
+     */
+    static List<String> split(String value, int chunkSize) {
+        List<String> chunks = new ArrayList<>(value.length() / chunkSize + 1);
+        int start = 0;
+        while (start < value.length()) {
+            int end = Math.min(start + chunkSize, value.length());
+            if (end < value.length() && end - start > 1 && Character.isHighSurrogate(value.charAt(end - 1))) {
+                end--;
+            }
+            chunks.add(value.substring(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+}
@@ -2,13 +2,36 @@ package net.unicon.iam.shibboleth.storage.hazelcast;
 
 import org.opensaml.storage.MutableStorageRecord;
 
+import java.util.Objects;
+
 /**
  * {@link MutableStorageRecord} implementation that allows the setting of the version. Used for the Hazelcast
  * serialization engine.
+ * <p>
+ * Records are equal if their value, expiration and version are, so that maps in OBJECT in-memory format can compare
+ * them in {@link com.hazelcast.map.IMap#replace(Object, Object, Object)}.
  */
 public class VersionMutableStorageRecord extends MutableStorageRecord {
     public VersionMutableStorageRecord(String value, Long expiration, Long version) {
         super(value, expiration);
         super.setVersion(version);
     }
-}
\ No newline at end of file
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof VersionMutableStorageRecord)) {
+            return false;
+        }
+        VersionMutableStorageRecord that = (VersionMutableStorageRecord) obj;
+        return getVersion() == that.getVersion() && Objects.equals(getValue(), that.getValue())
+                && Objects.equals(getExpiration(), that.getExpiration());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(getValue(), getExpiration(), getVersion());
+    }
+}
@@ -0,0 +1,60 @@
+package net.unicon.iam.shibboleth.storage.hazelcast.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The measurements of all operations in one context.
+ */
+public class ContextMetrics {
+    private final String context;
+    private final OperationMetrics[] operations;
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    ContextMetrics(String context) {
+        this.context = context;
+        this.operations = new OperationMetrics[StorageOperation.values().length];
+        for (int i = 0; i < this.operations.length; i++) {
+            this.operations[i] = new OperationMetrics();
+        }
+    }
+
+    public String getContext() {
+        return this.context;
+    }
+
+    public OperationMetrics getOperation(StorageOperation operation) {
+        return this.operations[operation.ordinal()];
+    }
+
+    /**
+     * @return the number of entries evicted from the context on this member because it was full
+     */
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    void recordEviction() {
+        this.evictions.increment();
+    }
+
+    /**
+     * @return the number of entries of the context that expired on this member, if expiration events are enabled for
+     * the context
+     */
+    public long getExpirations() {
+        return this.expirations.sum();
+    }
+
+    void recordExpiration() {
+        this.expirations.increment();
+    }
+
+    void reset() {
+        this.evictions.reset();
+        this.expirations.reset();
+        for (OperationMetrics operation : this.operations) {
+            operation.reset();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package net.unicon.iam.shibboleth.storage.hazelcast.metrics;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binds the metrics of a storage service to a Micrometer registry. Micrometer is an optional dependency; this class is
+ * only usable if it is on the classpath.
+ * <p>
+ * The meters, all named with the prefix {@code shibboleth.storage.}, are:
+ * <ul>
+ *     <li>{@code jvm.serialized.records} and {@code jvm.serialized.bytes}: counters of the records serialized in the
+ *     JVM by all storage services, and of the bytes written for them. They have no tags.</li>
+ *     <li>{@code evictions} and {@code expirations}: counters of the entries of each tracked context evicted or
+ *     expired on this member, tagged with the service id and the context.</li>
+ *     <li>{@code operations}: a timer of the throughput and latency of each operation of each tracked context.</li>
+ *     <li>{@code operations.errors}, {@code operations.version.mismatches} and {@code operations.conflicts}: counters
+ *     of the failed operations, of the operations whose version did not match and of the optimistic updates that had
+ *     to be retried.</li>
+ *     <li>{@code operations.latency}: gauges of the latency with a {@code quantile} tag of 0.5 and 0.99.</li>
+ * </ul>
+ * The meters of operations are tagged with the service id, the context and the operation.
+ */
+public class MicrometerStorageServiceMetrics implements MeterBinder {
+    private static final String PREFIX = "shibboleth.storage.";
+
+    private final StorageServiceMetrics metrics;
+
+    public MicrometerStorageServiceMetrics(StorageServiceMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void bindTo(@Nonnull MeterRegistry registry) {
+        Tags serviceTags = Tags.of("service", this.metrics.getServiceId());
+        // the serializers count for the whole JVM, so these counters have no service tag
+        FunctionCounter.builder(PREFIX + "jvm.serialized.records", this.metrics, StorageServiceMetrics::getJvmRecordsSerialized)
+                .description("Storage records serialized in this JVM by all storage services")
+                .register(registry);
+        FunctionCounter.builder(PREFIX + "jvm.serialized.bytes", this.metrics, StorageServiceMetrics::getJvmBytesSerialized)
+                .description("Bytes written for the storage records serialized in this JVM by all storage services")
+                .baseUnit("bytes")
+                .register(registry);
+        this.metrics.addContextListener(contextMetrics -> {
+            FunctionCounter.builder(PREFIX + "evictions", contextMetrics, ContextMetrics::getEvictions)
+                    .description("Entries evicted on this member because the context was full")
+                    .tags(serviceTags.and("context", contextMetrics.getContext()))
+                    .register(registry);
+            FunctionCounter.builder(PREFIX + "expirations", contextMetrics, ContextMetrics::getExpirations)
+                    .description("Entries that expired on this member")
+                    .tags(serviceTags.and("context", contextMetrics.getContext()))
+                    .register(registry);
+            for (StorageOperation operation : StorageOperation.values()) {
+                bindOperation(registry, serviceTags.and("context", contextMetrics.getContext(), "operation", operation.name().toLowerCase()),
+                        contextMetrics.getOperation(operation));
+            }
+        });
+    }
+
+    private static void bindOperation(MeterRegistry registry, Tags tags, OperationMetrics operationMetrics) {
+        LatencyHistogram latency = operationMetrics.getLatency();
+        FunctionTimer.builder(PREFIX + "operations", latency, LatencyHistogram::getCount, LatencyHistogram::getTotalNanos, TimeUnit.NANOSECONDS)
+                .description("Storage operations")
+                .tags(tags)
+                .register(registry);
+        FunctionCounter.builder(PREFIX + "operations.errors", operationMetrics, OperationMetrics::getErrors)
+                .description("Storage operations that failed")
+                .tags(tags)
+                .register(registry);
+        FunctionCounter.builder(PREFIX + "operations.version.mismatches", operationMetrics, OperationMetrics::getVersionMismatches)
+                .description("Versioned storage operations that found a different version")
+                .tags(tags)
+                .register(registry);
+        FunctionCounter.builder(PREFIX + "operations.conflicts", operationMetrics, OperationMetrics::getConflicts)
+                .description("Optimistic storage updates that lost to a concurrent update")
+                .tags(tags)
+                .register(registry);
+        TimeGauge.builder(PREFIX + "operations.latency", latency, TimeUnit.NANOSECONDS, h -> h.getPercentileNanos(50))
+                .tags(tags.and("quantile", "0.5"))
+                .register(registry);
+        TimeGauge.builder(PREFIX + "operations.latency", latency, TimeUnit.NANOSECONDS, h -> h.getPercentileNanos(99))
+                .tags(tags.and("quantile", "0.99"))
+                .register(registry);
+    }
+}
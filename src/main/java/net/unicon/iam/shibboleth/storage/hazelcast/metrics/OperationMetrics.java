@@ -0,0 +1,64 @@
+package net.unicon.iam.shibboleth.storage.hazelcast.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency, error and version mismatch measurements of one operation in one context.
+ */
+public class OperationMetrics {
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder versionMismatches = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+
+    /**
+     * @return the latencies of all completed operations, including failed ones
+     */
+    public LatencyHistogram getLatency() {
+        return this.latency;
+    }
+
+    public long getCount() {
+        return this.latency.getCount();
+    }
+
+    public long getErrors() {
+        return this.errors.sum();
+    }
+
+    public long getVersionMismatches() {
+        return this.versionMismatches.sum();
+    }
+
+    /**
+     * @return the number of optimistic writes that lost to a concurrent write and were retried or given up
+     */
+    public long getConflicts() {
+        return this.conflicts.sum();
+    }
+
+    void recordSuccess(long nanos) {
+        this.latency.record(nanos);
+    }
+
+    void recordError(long nanos) {
+        this.latency.record(nanos);
+        this.errors.increment();
+    }
+
+    void recordVersionMismatch(long nanos) {
+        this.latency.record(nanos);
+        this.versionMismatches.increment();
+    }
+
+    void recordConflict() {
+        this.conflicts.increment();
+    }
+
+    void reset() {
+        this.latency.reset();
+        this.errors.reset();
+        this.versionMismatches.reset();
+        this.conflicts.reset();
+    }
+}
@@ -0,0 +1,77 @@
+package net.unicon.iam.shibboleth.storage.hazelcast.metrics;
+
+/**
+ * Snapshot of the measurements of one operation in one context, as exposed through JMX.
+ */
+public class OperationStatistics {
+    private final String context;
+    private final String operation;
+    private final long count;
+    private final long errors;
+    private final long versionMismatches;
+    private final long conflicts;
+    private final double meanMicros;
+    private final double p50Micros;
+    private final double p99Micros;
+    private final double p999Micros;
+    private final double maxMicros;
+
+    OperationStatistics(String context, StorageOperation operation, OperationMetrics metrics) {
+        LatencyHistogram latency = metrics.getLatency();
+        this.context = context;
+        this.operation = operation.name();
+        this.count = metrics.getCount();
+        this.errors = metrics.getErrors();
+        this.versionMismatches = metrics.getVersionMismatches();
+        this.conflicts = metrics.getConflicts();
+        this.meanMicros = latency.getMeanNanos() / 1000;
+        this.p50Micros = latency.getPercentileNanos(50) / 1000d;
+        this.p99Micros = latency.getPercentileNanos(99) / 1000d;
+        this.p999Micros = latency.getPercentileNanos(99.9) / 1000d;
+        this.maxMicros = latency.getMaxNanos() / 1000d;
+    }
+
+    public String getContext() {
+        return this.context;
+    }
+
+    public String getOperation() {
+        return this.operation;
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    public long getErrors() {
+        return this.errors;
+    }
+
+    public long getVersionMismatches() {
+        return this.versionMismatches;
+    }
+
+    public long getConflicts() {
+        return this.conflicts;
+    }
+
+    public double getMeanMicros() {
+        return this.meanMicros;
+    }
+
+    public double getP50Micros() {
+        return this.p50Micros;
+    }
+
+    public double getP99Micros() {
+        return this.p99Micros;
+    }
+
+    public double getP999Micros() {
+        return this.p999Micros;
+    }
+
+    public double getMaxMicros() {
+        return this.maxMicros;
+    }
+}
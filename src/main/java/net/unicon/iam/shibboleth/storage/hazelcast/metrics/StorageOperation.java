@@ -0,0 +1,22 @@
+package net.unicon.iam.shibboleth.storage.hazelcast.metrics;
+
+/**
+ * The storage service operations that are measured.
+ */
+public enum StorageOperation {
+    CREATE,
+    READ,
+    READ_WITH_VERSION,
+    UPDATE,
+    UPDATE_WITH_VERSION,
+    UPDATE_EXPIRATION,
+    DELETE,
+    DELETE_WITH_VERSION,
+    UPDATE_CONTEXT_EXPIRATION,
+    DELETE_CONTEXT,
+    READ_ALL,
+    CREATE_ALL,
+    DELETE_ALL,
+    READ_INDEXED,
+    DELETE_INDEXED
+}
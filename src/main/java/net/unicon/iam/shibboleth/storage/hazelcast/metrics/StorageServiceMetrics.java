@@ -0,0 +1,291 @@
+package net.unicon.iam.shibboleth.storage.hazelcast.metrics;
+
+import net.unicon.iam.shibboleth.storage.hazelcast.MutableStorageRecordSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Per operation and per context metrics of a storage service.
+ * <p>
+ * Recording is lock-free and does not allocate once a context has been seen. Contexts are tracked individually up to
+ * a maximum, as some contexts are derived from request data such as session ids; operations in any further context
+ * are counted under {@link #OTHER_CONTEXTS}.
+ */
+public class StorageServiceMetrics implements StorageServiceMetricsMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(StorageServiceMetrics.class);
+
+    /**
+     * Name under which the contexts beyond the maximum number of tracked contexts are counted.
+     */
+    public static final String OTHER_CONTEXTS = "_other";
+
+    /**
+     * Domain of the JMX object names.
+     */
+    public static final String JMX_DOMAIN = "net.unicon.iam.shibboleth.storage.hazelcast";
+
+    private final String serviceId;
+    private final int maxContexts;
+    private final ConcurrentMap<String, ContextMetrics> contexts = new ConcurrentHashMap<>();
+    private final ContextMetrics otherContexts = new ContextMetrics(OTHER_CONTEXTS);
+    private final List<Consumer<ContextMetrics>> contextListeners = new CopyOnWriteArrayList<>();
+    private ObjectName objectName;
+
+    /**
+     * @param serviceId   the id of the storage service
+     * @param maxContexts the maximum number of contexts tracked individually
+     */
+    public StorageServiceMetrics(String serviceId, int maxContexts) {
+        this.serviceId = serviceId;
+        this.maxContexts = maxContexts;
+    }
+
+    @Override
+    public String getServiceId() {
+        return this.serviceId;
+    }
+
+    /**
+     * @param startNanos the {@link System#nanoTime()} at which the operation started
+     */
+    public void recordSuccess(StorageOperation operation, String context, long startNanos) {
+        getContextMetrics(context).getOperation(operation).recordSuccess(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @param startNanos the {@link System#nanoTime()} at which the operation started
+     */
+    public void recordError(StorageOperation operation, String context, long startNanos) {
+        getContextMetrics(context).getOperation(operation).recordError(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @param startNanos the {@link System#nanoTime()} at which the operation started
+     */
+    public void recordVersionMismatch(StorageOperation operation, String context, long startNanos) {
+        getContextMetrics(context).getOperation(operation).recordVersionMismatch(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record an optimistic write that lost to a concurrent write of the same record.
+     */
+    public void recordConflict(StorageOperation operation, String context) {
+        getContextMetrics(context).getOperation(operation).recordConflict();
+    }
+
+    /**
+     * Record the eviction of an entry of a full context.
+     *
+     * @param context the context
+     */
+    public void recordEviction(String context) {
+        getContextMetrics(context).recordEviction();
+    }
+
+    /**
+     * Record the expiration of an entry of a context.
+     *
+     * @param context the context
+     */
+    public void recordExpiration(String context) {
+        getContextMetrics(context).recordExpiration();
+    }
+
+    /**
+     * @param context the context
+     * @return the metrics of the context, or of {@link #OTHER_CONTEXTS} if too many contexts are tracked already
+     */
+    public ContextMetrics getContextMetrics(String context) {
+        ContextMetrics contextMetrics = this.contexts.get(context);
+        return contextMetrics != null ? contextMetrics : addContext(context);
+    }
+
+    private ContextMetrics addContext(String context) {
+        if (this.contexts.size() >= this.maxContexts) {
+            return this.otherContexts;
+        }
+        ContextMetrics contextMetrics = new ContextMetrics(context);
+        ContextMetrics existing = this.contexts.putIfAbsent(context, contextMetrics);
+        if (existing != null) {
+            return existing;
+        }
+        if (this.contexts.size() == this.maxContexts) {
+            logger.info("Tracking the maximum of {} contexts in storage service {}, further contexts are counted as {}", this.maxContexts, this.serviceId, OTHER_CONTEXTS);
+            notifyListeners(this.otherContexts);
+        }
+        notifyListeners(contextMetrics);
+        return contextMetrics;
+    }
+
+    private void notifyListeners(ContextMetrics contextMetrics) {
+        for (Consumer<ContextMetrics> listener : this.contextListeners) {
+            listener.accept(contextMetrics);
+        }
+    }
+
+    /**
+     * @return the metrics of all contexts seen so far
+     */
+    public Collection<ContextMetrics> getContexts() {
+        List<ContextMetrics> result = new ArrayList<>(this.contexts.values());
+        if (this.contexts.size() >= this.maxContexts) {
+            result.add(this.otherContexts);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Add a listener called with the metrics of every context seen so far and of every context seen later, e.g. to
+     * register meters for it.
+     *
+     * @param listener the listener
+     */
+    public void addContextListener(Consumer<ContextMetrics> listener) {
+        this.contextListeners.add(listener);
+        getContexts().forEach(listener);
+    }
+
+    @Override
+    public List<OperationStatistics> getOperationStatistics() {
+        List<OperationStatistics> statistics = new ArrayList<>();
+        for (ContextMetrics contextMetrics : getContexts()) {
+            for (StorageOperation operation : StorageOperation.values()) {
+                OperationMetrics operationMetrics = contextMetrics.getOperation(operation);
+                if (operationMetrics.getCount() > 0) {
+                    statistics.add(new OperationStatistics(contextMetrics.getContext(), operation, operationMetrics));
+                }
+            }
+        }
+        return statistics;
+    }
+
+    @Override
+    public long getOperationCount() {
+        long count = 0;
+        for (ContextMetrics contextMetrics : getContexts()) {
+            for (StorageOperation operation : StorageOperation.values()) {
+                count += contextMetrics.getOperation(operation).getCount();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long getErrorCount() {
+        long count = 0;
+        for (ContextMetrics contextMetrics : getContexts()) {
+            for (StorageOperation operation : StorageOperation.values()) {
+                count += contextMetrics.getOperation(operation).getErrors();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long getVersionMismatchCount() {
+        long count = 0;
+        for (ContextMetrics contextMetrics : getContexts()) {
+            for (StorageOperation operation : StorageOperation.values()) {
+                count += contextMetrics.getOperation(operation).getVersionMismatches();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long getConflictCount() {
+        long count = 0;
+        for (ContextMetrics contextMetrics : getContexts()) {
+            for (StorageOperation operation : StorageOperation.values()) {
+                count += contextMetrics.getOperation(operation).getConflicts();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public Map<String, Long> getEvictionCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (ContextMetrics contextMetrics : getContexts()) {
+            if (contextMetrics.getEvictions() > 0) {
+                counts.put(contextMetrics.getContext(), contextMetrics.getEvictions());
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getExpirationCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (ContextMetrics contextMetrics : getContexts()) {
+            if (contextMetrics.getExpirations() > 0) {
+                counts.put(contextMetrics.getContext(), contextMetrics.getExpirations());
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public long getJvmRecordsSerialized() {
+        return MutableStorageRecordSerializer.getJvmRecordsSerialized();
+    }
+
+    @Override
+    public long getJvmBytesSerialized() {
+        return MutableStorageRecordSerializer.getJvmBytesSerialized();
+    }
+
+    @Override
+    public void reset() {
+        for (ContextMetrics contextMetrics : getContexts()) {
+            contextMetrics.reset();
+        }
+    }
+
+    /**
+     * Register the metrics with the platform MBean server.
+     */
+    public synchronized void registerMBean() {
+        if (this.objectName != null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=StorageServiceMetrics,name=" + ObjectName.quote(this.serviceId));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, name);
+            this.objectName = name;
+        } catch (JMException e) {
+            logger.warn("Unable to register the metrics of storage service {} with JMX", this.serviceId, e);
+        }
+    }
+
+    /**
+     * Unregister the metrics from the platform MBean server, if registered.
+     */
+    public synchronized void unregisterMBean() {
+        if (this.objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+        } catch (JMException e) {
+            logger.warn("Unable to unregister the metrics of storage service {} from JMX", this.serviceId, e);
+        }
+        this.objectName = null;
+    }
+}
@@ -0,0 +1,53 @@
+package net.unicon.iam.shibboleth.storage.hazelcast.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of the metrics of a storage service.
+ */
+public interface StorageServiceMetricsMXBean {
+    String getServiceId();
+
+    /**
+     * @return the statistics of every operation performed at least once, per context
+     */
+    List<OperationStatistics> getOperationStatistics();
+
+    long getOperationCount();
+
+    long getErrorCount();
+
+    long getVersionMismatchCount();
+
+    /**
+     * @return the number of optimistic updates that lost to a concurrent update and were retried or given up
+     */
+    long getConflictCount();
+
+    /**
+     * @return the number of entries evicted on this member from each full context
+     */
+    Map<String, Long> getEvictionCounts();
+
+    /**
+     * @return the number of entries that expired on this member in each context with expiration events
+     */
+    Map<String, Long> getExpirationCounts();
+
+    /**
+     * @return the number of storage records serialized in this JVM by all storage services, not only this one
+     */
+    long getJvmRecordsSerialized();
+
+    /**
+     * @return the number of bytes written for the storage records serialized in this JVM by all storage services, not
+     * only this one
+     */
+    long getJvmBytesSerialized();
+
+    /**
+     * Reset the operation statistics. Serialization counters are shared by the JVM and are not reset.
+     */
+    void reset();
+}
@@ -0,0 +1,141 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs the storage service tests with a chunking threshold so low that most values are chunked.
+ */
+public class ChunkedValueStorageServiceTest extends HazelcastStorageServiceTest {
+    private HazelcastMapBackedStorageService storageService;
+    private HazelcastInstance hazelcastInstance;
+
+    @BeforeClass
+    @Override
+    protected void setUp() throws ComponentInitializationException {
+        Config config = new Config().setClusterName("chunked-value-test");
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        this.hazelcastInstance = Hazelcast.newHazelcastInstance(config);
+
+        this.storageService = new HazelcastMapBackedStorageService(this.hazelcastInstance);
+        this.storageService.setId("test");
+        this.storageService.setValueChunkingThreshold(8);
+        this.storageService.setValueChunkSize(5);
+        super.setUp();
+    }
+
+    @AfterClass
+    @Override
+    protected void tearDown() {
+        this.hazelcastInstance.shutdown();
+        super.tearDown();
+    }
+
+    @Nonnull
+    @Override
+    protected StorageService getStorageService() {
+        return this.storageService;
+    }
+
+    private IMap<Object, ValueChunk> getChunkMap(String context) {
+        return this.hazelcastInstance.getMap(context + AbstractHazelcastMapBackedStorageService.CHUNK_MAP_SUFFIX);
+    }
+
+    @Test
+    public void testChunkedRecordLifecycle() throws Exception {
+        String context = "testChunkedRecordLifecycle";
+        String value = "a value of 33 characters in total";
+        IMap<Object, ValueChunk> chunks = getChunkMap(context);
+
+        assert this.storageService.create(context, "key", value, System.currentTimeMillis() + 600000);
+        assert chunks.size() == 7;
+        assert ValueChunks.isHeader(((StorageRecord) this.hazelcastInstance.getMap(context).get("key")).getValue());
+        StorageRecord record = this.storageService.read(context, "key");
+        assert record.getValue().equals(value) && record.getVersion() == 1;
+
+        // the replaced chunks are removed, and short values are stored in the record itself
+        assert this.storageService.updateWithVersion(1, context, "key", "another value that is chunked", null) == 2;
+        assert chunks.size() == 6;
+        assert this.storageService.read(context, "key", 1).getSecond().getValue().equals("another value that is chunked");
+        assert this.storageService.update(context, "key", "short", null);
+        assert chunks.isEmpty();
+        assert this.storageService.read(context, "key").getValue().equals("short");
+
+        assert this.storageService.update(context, "key", value, null);
+        assert this.storageService.delete(context, "key");
+        assert chunks.isEmpty();
+        assert this.storageService.create(context, "key", value, null) && chunks.size() == 7;
+    }
+
+    @Test
+    public void testChunkExpiration() throws Exception {
+        String context = "testChunkExpiration";
+        IMap<Object, ValueChunk> chunks = getChunkMap(context);
+        long expiration = System.currentTimeMillis() + 600000;
+        this.storageService.create(context, "key", "a value that is split into chunks", expiration);
+        for (Object chunkKey : chunks.keySet()) {
+            assert Math.abs(chunks.getEntryView(chunkKey).getExpirationTime() - expiration) < 1000;
+        }
+
+        long extended = System.currentTimeMillis() + 900000;
+        assert this.storageService.updateExpiration(context, "key", extended);
+        for (Object chunkKey : chunks.keySet()) {
+            assert Math.abs(chunks.getEntryView(chunkKey).getExpirationTime() - extended) < 1000;
+        }
+
+        Set<Object> chunkKeys = chunks.keySet();
+        this.storageService.updateContextExpiration(context, System.currentTimeMillis() + 1000);
+        Thread.sleep(2000);
+        assert this.storageService.read(context, "key") == null;
+        assert chunks.getAll(chunkKeys).isEmpty();
+    }
+
+    @Test
+    public void testChunkedBulkOperations() throws Exception {
+        String context = "testChunkedBulkOperations";
+        Map<String, String> values = new HashMap<>();
+        values.put("small", "small");
+        values.put("large", "a large value with surrogate pairs 😀😀😀");
+        Map<String, Boolean> created = this.storageService.createAll(context, values, null);
+        assert created.get("small") && created.get("large");
+
+        Map<String, StorageRecord> records = this.storageService.readAll(context, Arrays.asList("small", "large", "missing"));
+        assert records.size() == 2;
+        assert records.get("small").getValue().equals(values.get("small"));
+        assert records.get("large").getValue().equals(values.get("large"));
+
+        Map<String, Boolean> deleted = this.storageService.deleteAll(context, Arrays.asList("small", "large"));
+        assert deleted.get("small") && deleted.get("large");
+        assert getChunkMap(context).isEmpty();
+
+        this.storageService.create(context, "key", "a value that is split into chunks", null);
+        this.storageService.deleteContext(context);
+        assert getChunkMap(context).isEmpty();
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testHeaderValueRejected() throws Exception {
+        this.storageService.create("testHeaderValueRejected", "key", ValueChunks.header(1, 1), null);
+    }
+
+    @Test
+    public void testSplit() {
+        assert ValueChunks.split("abcdefgh", 3).equals(Arrays.asList("abc", "def", "gh"));
+        assert ValueChunks.split("ab😀cd", 3).equals(Arrays.asList("ab", "😀c", "d"));
+    }
+}
@@ -0,0 +1,59 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import org.opensaml.storage.StorageService;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.annotation.Nonnull;
+import java.util.Collections;
+
+public class HazelcastClientStorageServiceTest extends HazelcastStorageServiceTest {
+    private SingleHazelcastMapBackedStorageService storageService;
+    private HazelcastInstance member;
+    private HazelcastInstance client;
+
+    @BeforeClass
+    @Override
+    protected void setUp() throws ComponentInitializationException {
+        Config config = new Config().setClusterName("client-test");
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        HazelcastStorageSerialization.addSerializers(config.getSerializationConfig());
+        this.member = Hazelcast.newHazelcastInstance(config);
+
+        HazelcastClientFactory clientFactory = new HazelcastClientFactory();
+        clientFactory.setClusterName("client-test");
+        clientFactory.setAddresses(Collections.singletonList("127.0.0.1:" + this.member.getCluster().getLocalMember().getAddress().getPort()));
+        this.client = clientFactory.newHazelcastClient();
+
+        this.storageService = new SingleHazelcastMapBackedStorageService("test", this.client);
+        this.storageService.setId("test");
+        this.storageService.setShutdownInstanceOnDestroy(false);
+        super.setUp();
+    }
+
+    @AfterClass
+    @Override
+    protected void tearDown() {
+        super.tearDown();
+        assert this.client.getLifecycleService().isRunning();
+        this.client.shutdown();
+        this.member.shutdown();
+    }
+
+    @Nonnull
+    @Override
+    protected StorageService getStorageService() {
+        return this.storageService;
+    }
+
+    @Test
+    public void clientModeTest() {
+        assert this.storageService.isClient();
+        assert this.storageService.getContextAttribute().equals("__key.context");
+    }
+}
@@ -1,13 +1,29 @@
 package net.unicon.iam.shibboleth.storage.hazelcast;
 
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.unicon.iam.shibboleth.storage.hazelcast.metrics.OperationMetrics;
+import net.unicon.iam.shibboleth.storage.hazelcast.metrics.StorageOperation;
+import net.unicon.iam.shibboleth.storage.hazelcast.metrics.StorageServiceMetrics;
 import org.opensaml.storage.StorageService;
+import org.opensaml.storage.VersionMismatchException;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
 
 import javax.annotation.Nonnull;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class HazelcastMapBackedStorageServiceTest extends HazelcastStorageServiceTest {
     private HazelcastMapBackedStorageService hazelcastMapBackedStorageService;
@@ -19,6 +35,7 @@ public class HazelcastMapBackedStorageServiceTest extends HazelcastStorageServic
         this.hazelcastInstance = Hazelcast.newHazelcastInstance();
         this.hazelcastMapBackedStorageService = new HazelcastMapBackedStorageService(this.hazelcastInstance);
         this.hazelcastMapBackedStorageService.setId("test");
+        this.hazelcastMapBackedStorageService.setMetricsEnabled(true);
         super.setUp();
     }
 
@@ -34,4 +51,222 @@ public class HazelcastMapBackedStorageServiceTest extends HazelcastStorageServic
     protected StorageService getStorageService() {
         return this.hazelcastMapBackedStorageService;
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testMetrics() throws Exception {
+        String context = "testMetrics";
+        StorageServiceMetrics metrics = this.hazelcastMapBackedStorageService.getMetrics();
+        assert metrics != null;
+
+        this.shared.create(context, "key", "value", null);
+        this.shared.read(context, "key");
+        this.shared.read(context, "key");
+        try {
+            this.shared.updateWithVersion(5, context, "key", "value", null);
+            assert false;
+        } catch (VersionMismatchException e) {
+            // expected
+        }
+
+        assert metrics.getContextMetrics(context).getOperation(StorageOperation.CREATE).getCount() == 1;
+        assert metrics.getContextMetrics(context).getOperation(StorageOperation.READ).getCount() == 2;
+        OperationMetrics update = metrics.getContextMetrics(context).getOperation(StorageOperation.UPDATE_WITH_VERSION);
+        assert update.getCount() == 1 && update.getVersionMismatches() == 1 && update.getErrors() == 0;
+        assert update.getLatency().getPercentileNanos(99) > 0;
+        assert metrics.getJvmRecordsSerialized() > 0;
+
+        ObjectName name = new ObjectName(StorageServiceMetrics.JMX_DOMAIN + ":type=StorageServiceMetrics,name=" + ObjectName.quote("test"));
+        assert (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "OperationCount") >= 4;
+        assert ManagementFactory.getPlatformMBeanServer().getAttribute(name, "OperationStatistics") != null;
+    }
+
+    @Test
+    public void testExpirationEvents() throws Exception {
+        // events are only raised for the entries owned by the local member, so use a member of its own
+        Queue<ExpirationEvent> events = new ConcurrentLinkedQueue<>();
+        HazelcastMapBackedStorageService expiring = new HazelcastMapBackedStorageService(Hazelcast.newHazelcastInstance(new Config().setClusterName("expiration-events-test")));
+        expiring.setId("expiring");
+        expiring.setExpirationEventContexts(Collections.singleton("expiring"));
+        expiring.setExpirationListeners(Collections.singletonList(events::addAll));
+        expiring.setMetricsEnabled(true);
+        expiring.initialize();
+        try {
+            for (int i = 0; i < 20; i++) {
+                expiring.create("expiring", Integer.toString(i), "value", System.currentTimeMillis() + 1000);
+            }
+            long deadline = System.currentTimeMillis() + 60000;
+            while (events.size() < 20 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(200);
+            }
+            assert events.size() == 20;
+            ExpirationEvent event = events.peek();
+            assert event.getContext().equals("expiring") && event.getCause() == ExpirationEvent.Cause.EXPIRED;
+            assert Integer.parseInt(event.getKey()) < 20;
+            assert expiring.getMetrics().getContextMetrics("expiring").getExpirations() == 20;
+            assert expiring.getDroppedExpirationEvents() == 0;
+        } finally {
+            expiring.destroy();
+        }
+    }
+
+    @Test
+    public void testCoalescedExpirationWrittenOnDestroy() throws Exception {
+        String context = "testCoalescedExpirationWrittenOnDestroy";
+        HazelcastMapBackedStorageService coalescing = new HazelcastMapBackedStorageService(this.hazelcastInstance);
+        coalescing.setId("coalescing");
+        coalescing.setShutdownInstanceOnDestroy(false);
+        coalescing.setExpirationCoalescingWindow(600000);
+        coalescing.setExpirationCoalescingFlushInterval(600000);
+        coalescing.initialize();
+
+        long expiration = System.currentTimeMillis() + 3600000;
+        coalescing.create(context, "key", "value", expiration);
+        coalescing.update(context, "key", "value", expiration);
+        assert coalescing.updateExpiration(context, "key", expiration + 60000);
+        assert this.shared.read(context, "key").getExpiration() == expiration;
+
+        coalescing.destroy();
+        assert this.shared.read(context, "key").getExpiration() == expiration + 60000;
+    }
+
+    @Test
+    public void testShortenedExpirationNotUndoneByCoalescing() throws Exception {
+        String context = "testShortenedExpirationNotUndoneByCoalescing";
+        HazelcastMapBackedStorageService coalescing = new HazelcastMapBackedStorageService(this.hazelcastInstance);
+        coalescing.setId("shortening");
+        coalescing.setShutdownInstanceOnDestroy(false);
+        coalescing.setExpirationCoalescingWindow(600000);
+        coalescing.setExpirationCoalescingFlushInterval(600000);
+        coalescing.initialize();
+
+        long expiration = System.currentTimeMillis() + 3600000;
+        coalescing.create(context, "key", "value", expiration);
+        coalescing.update(context, "key", "value", expiration);
+        // the touch is deferred, the shortening is written at once and drops it
+        assert coalescing.updateExpiration(context, "key", expiration + 60000);
+        assert coalescing.updateExpiration(context, "key", expiration - 60000);
+        assert this.shared.read(context, "key").getExpiration() == expiration - 60000;
+
+        // the next touch is deferred against the shortened expiration and written on destroy
+        assert coalescing.updateExpiration(context, "key", expiration - 30000);
+        assert this.shared.read(context, "key").getExpiration() == expiration - 60000;
+        coalescing.destroy();
+        assert this.shared.read(context, "key").getExpiration() == expiration - 30000;
+    }
+
+    @Test
+    public void testSecondaryIndex() throws Exception {
+        String context = "sessions";
+        Config config = new Config().setClusterName("secondary-index-test");
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        HazelcastMapBackedStorageService indexed = new HazelcastMapBackedStorageService(Hazelcast.newHazelcastInstance(config));
+        indexed.setId("indexed");
+        indexed.setIndexAttributeExtractors(Collections.singletonMap(context, new PatternIndexAttributeExtractor("principal=(\\w+)")));
+        indexed.initialize();
+        try {
+            indexed.create(context, "s1", "principal=alice", null);
+            indexed.create(context, "s2", "principal=alice", System.currentTimeMillis() + 600000);
+            indexed.create(context, "s3", "principal=bob", null);
+            indexed.create(context, "s4", "anonymous", null);
+            indexed.createAll(context, Collections.singletonMap("s5", "principal=alice"), null);
+            assert indexed.getIndexedKeys(context, "alice").equals(new HashSet<>(Arrays.asList("s1", "s2", "s5")));
+            assert indexed.getIndexedKeys(context, "bob").equals(Collections.singleton("s3"));
+            assert indexed.getIndexedKeys(context, "nobody").isEmpty();
+
+            // a changed attribute is indexed at once, the old key is only left out of the results
+            indexed.update(context, "s3", "principal=alice", null);
+            assert indexed.getIndexedKeys(context, "bob").isEmpty();
+            assert indexed.getIndexedKeys(context, "alice").size() == 4;
+
+            IMap<Object, SecondaryIndexEntry> index = indexed.getIndexMap(context);
+            SingleHazelcastMapBackedStorageService.CompositeKey alice = new SingleHazelcastMapBackedStorageService.CompositeKey(context, "alice");
+            assert indexed.delete(context, "s1");
+            assert !index.get(alice).getKeys().containsKey("s1");
+
+            assert indexed.deleteIndexed(context, "alice") == 3;
+            assert indexed.read(context, "s2") == null && indexed.read(context, "s4") != null;
+            assert index.get(alice) == null;
+
+            // expired records are removed from the index by the member that owned them
+            indexed.create(context, "s6", "principal=carol", System.currentTimeMillis() + 1000);
+            SingleHazelcastMapBackedStorageService.CompositeKey carol = new SingleHazelcastMapBackedStorageService.CompositeKey(context, "carol");
+            long deadline = System.currentTimeMillis() + 60000;
+            while (index.get(carol) != null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(200);
+            }
+            assert index.get(carol) == null;
+
+            // a key added again after its entry was read survives the removal for the deleted record
+            indexed.create(context, "s8", "principal=erin", null);
+            SingleHazelcastMapBackedStorageService.CompositeKey erin = new SingleHazelcastMapBackedStorageService.CompositeKey(context, "erin");
+            SecondaryIndexEntry read = index.get(erin);
+            index.executeOnKey(erin, SecondaryIndexProcessor.add(Collections.singleton("s8")));
+            index.executeOnKey(erin, SecondaryIndexProcessor.remove(Collections.singleton("s8"), read, 0));
+            assert index.get(erin).getKeys().containsKey("s8");
+            index.executeOnKey(erin, SecondaryIndexProcessor.remove(Collections.singleton("s8"), index.get(erin), 0));
+            assert index.get(erin) == null;
+
+            indexed.create(context, "s7", "principal=dave", null);
+            indexed.deleteContext(context);
+            assert index.isEmpty();
+        } finally {
+            indexed.destroy();
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testContextNotIndexed() throws Exception {
+        this.hazelcastMapBackedStorageService.getIndexedKeys("testContextNotIndexed", "attribute");
+    }
+
+    @Test
+    public void testContextMapSettings() throws Exception {
+        ContextMapSettings settings = new ContextMapSettings();
+        settings.setBackupCount(0);
+        settings.setAsyncBackupCount(1);
+        settings.setReadBackupData(true);
+        HazelcastMapBackedStorageService tuned = new HazelcastMapBackedStorageService(this.hazelcastInstance);
+        tuned.setId("tuned");
+        tuned.setContextMapSettings(Collections.singletonMap("tuned", settings));
+        tuned.setShutdownInstanceOnDestroy(false);
+        tuned.initialize();
+        try {
+            MapConfig mapConfig = this.hazelcastInstance.getConfig().getMapConfig("tuned");
+            assert mapConfig.getBackupCount() == 0 && mapConfig.getAsyncBackupCount() == 1 && mapConfig.isReadBackupData();
+
+            assert tuned.create("tuned", "key", "value", null);
+            assert tuned.read("tuned", "key").getValue().equals("value");
+            assert tuned.getMap("tuned", "key") == tuned.getMap("tuned", "other");
+        } finally {
+            tuned.destroy();
+        }
+    }
+
+    @Test
+    public void testBoundedContext() throws Exception {
+        HazelcastMapBackedStorageService bounded = new HazelcastMapBackedStorageService(this.hazelcastInstance);
+        bounded.setId("bounded");
+        bounded.setContextMaxEntries(Collections.singletonMap("bounded", 1000));
+        bounded.setValueSize(100);
+        bounded.setMetricsEnabled(true);
+        bounded.setShutdownInstanceOnDestroy(false);
+        bounded.initialize();
+        try {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < 5000; i++) {
+                bounded.create("bounded", Integer.toString(i), "value", now + 600000 + i);
+            }
+            assert this.hazelcastInstance.getMap("bounded").size() <= 1000;
+            assert bounded.getMetrics().getContextMetrics("bounded").getEvictions() > 0;
+
+            try {
+                bounded.create("bounded", "large", String.join("", Collections.nCopies(101, "x")), null);
+                assert false;
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            bounded.destroy();
+        }
+    }
+}
@@ -1,10 +1,21 @@
 package net.unicon.iam.shibboleth.storage.hazelcast;
 
 import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.VersionMismatchException;
 import org.opensaml.storage.testing.StorageServiceTest;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public abstract class HazelcastStorageServiceTest extends StorageServiceTest {
 
@@ -24,4 +35,75 @@ public abstract class HazelcastStorageServiceTest extends StorageServiceTest {
             assert record.getExpiration().equals(newExpiration);
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testConcurrentCreate() throws Exception {
+        String context = "testConcurrentCreate";
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<Boolean>> tasks = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                String value = Integer.toString(i);
+                tasks.add(() -> this.shared.create(context, "replay", value, System.currentTimeMillis() + 500000));
+            }
+            int created = 0;
+            for (Future<Boolean> future : executorService.invokeAll(tasks)) {
+                if (future.get()) {
+                    created++;
+                }
+            }
+            assert created == 1;
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAsyncOperations() throws Exception {
+        String context = "testAsyncOperations";
+        AsyncStorageService asyncStorageService = (AsyncStorageService) this.shared;
+
+        assert asyncStorageService.createAsync(context, "key", "value", null).toCompletableFuture().get();
+        assert !asyncStorageService.createAsync(context, "key", "other", null).toCompletableFuture().get();
+        assert asyncStorageService.readAsync(context, "key").toCompletableFuture().get().getValue().equals("value");
+        assert asyncStorageService.updateWithVersionAsync(1, context, "key", "updated", null).toCompletableFuture().get() == 2;
+
+        try {
+            asyncStorageService.updateWithVersionAsync(1, context, "key", "stale", null).toCompletableFuture().get();
+            assert false;
+        } catch (ExecutionException e) {
+            assert e.getCause() instanceof VersionMismatchException;
+        }
+
+        assert asyncStorageService.readAsync(context, "key", 2).toCompletableFuture().get().getSecond() == null;
+        assert asyncStorageService.deleteAsync(context, "key").toCompletableFuture().get();
+        assert asyncStorageService.readAsync(context, "key").toCompletableFuture().get() == null;
+    }
+
+    @Test
+    public void testBulkOperations() throws IOException {
+        String context = "testBulkOperations";
+        AbstractHazelcastMapBackedStorageService storageService = (AbstractHazelcastMapBackedStorageService) this.shared;
+        this.shared.create(context, "existing", "existing", null);
+
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < 10; i++) {
+            values.put(Integer.toString(i), "value" + i);
+        }
+        values.put("existing", "other");
+        Map<String, Boolean> created = storageService.createAll(context, values, System.currentTimeMillis() + 500000);
+        assert created.size() == 11;
+        assert !created.get("existing");
+        assert created.get("0") && created.get("9");
+
+        Map<String, StorageRecord> records = storageService.readAll(context, Arrays.asList("0", "5", "existing", "missing"));
+        assert records.size() == 3;
+        assert records.get("5").getValue().equals("value5");
+        assert records.get("existing").getValue().equals("existing");
+
+        Map<String, Boolean> deleted = storageService.deleteAll(context, Arrays.asList("0", "1", "missing"));
+        assert deleted.get("0") && deleted.get("1") && !deleted.get("missing");
+        assert this.shared.read(context, "0") == null;
+        assert this.shared.read(context, "2") != null;
+    }
+}
@@ -0,0 +1,113 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.internal.nio.BufferObjectDataOutput;
+import com.hazelcast.internal.serialization.InternalSerializationService;
+import com.hazelcast.internal.serialization.impl.DefaultSerializationServiceBuilder;
+import org.opensaml.storage.MutableStorageRecord;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class MutableStorageRecordSerializerTest {
+    private InternalSerializationService serializationService;
+
+    @BeforeClass
+    protected void setUp() {
+        this.serializationService = new DefaultSerializationServiceBuilder().build();
+    }
+
+    @AfterClass
+    protected void tearDown() {
+        this.serializationService.dispose();
+    }
+
+    private byte[] write(MutableStorageRecordSerializer serializer, MutableStorageRecord record) throws IOException {
+        BufferObjectDataOutput out = this.serializationService.createObjectDataOutput();
+        serializer.write(out, record);
+        return out.toByteArray();
+    }
+
+    private MutableStorageRecord read(MutableStorageRecordSerializer serializer, byte[] bytes) throws IOException {
+        return serializer.read(this.serializationService.createObjectDataInput(bytes));
+    }
+
+    private String largeValue() {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            value.append("{\"attribute\":\"välue-").append(i % 10).append("\"}");
+        }
+        return value.toString();
+    }
+
+    @Test
+    public void roundTripTest() throws IOException {
+        MutableStorageRecordSerializer serializer = new MutableStorageRecordSerializer();
+        MutableStorageRecord record = read(serializer, write(serializer, new VersionMutableStorageRecord("välue", 1234567890123L, 42L)));
+
+        assert record.getVersion() == 42;
+        assert record.getValue().equals("välue");
+        assert record.getExpiration() == 1234567890123L;
+
+        record = read(serializer, write(serializer, new MutableStorageRecord("", null)));
+        assert record.getVersion() == 1;
+        assert record.getValue().isEmpty();
+        assert record.getExpiration() == null;
+    }
+
+    @Test
+    public void compressionTest() throws IOException {
+        String value = largeValue();
+        MutableStorageRecordSerializer plain = new MutableStorageRecordSerializer();
+        MutableStorageRecordSerializer compressing = new MutableStorageRecordSerializer(1024);
+
+        byte[] compressed = write(compressing, new MutableStorageRecord(value, null));
+        assert compressed.length < write(plain, new MutableStorageRecord(value, null)).length / 4;
+
+        // records are readable regardless of the threshold of the reading serializer
+        MutableStorageRecord record = read(plain, compressed);
+        assert record.getValue().equals(value);
+    }
+
+    @Test
+    public void originalFormatTest() throws IOException {
+        MutableStorageRecordSerializer serializer = new MutableStorageRecordSerializer();
+
+        BufferObjectDataOutput out = this.serializationService.createObjectDataOutput();
+        out.writeLong(3);
+        out.writeString("original");
+        out.writeLong(-1);
+        MutableStorageRecord record = read(serializer, out.toByteArray());
+        assert record.getVersion() == 3;
+        assert record.getValue().equals("original");
+        assert record.getExpiration() == null;
+
+        out = this.serializationService.createObjectDataOutput();
+        out.writeLong(7);
+        out.writeString("original");
+        out.writeLong(1234567890123L);
+        record = read(serializer, out.toByteArray());
+        assert record.getVersion() == 7;
+        assert record.getExpiration() == 1234567890123L;
+    }
+
+    @Test
+    public void legacyFormatTest() throws IOException {
+        MutableStorageRecordSerializer legacy = new MutableStorageRecordSerializer(1024, true);
+        String value = largeValue();
+        byte[] bytes = write(legacy, new VersionMutableStorageRecord(value, 1234567890123L, 5L));
+
+        // written exactly as the original serializer did, without compression
+        BufferObjectDataOutput out = this.serializationService.createObjectDataOutput();
+        out.writeLong(5);
+        out.writeString(value);
+        out.writeLong(1234567890123L);
+        assert Arrays.equals(bytes, out.toByteArray());
+
+        MutableStorageRecord record = read(new MutableStorageRecordSerializer(), bytes);
+        assert record.getVersion() == 5 && record.getValue().equals(value) && record.getExpiration() == 1234567890123L;
+        assert read(legacy, write(legacy, new MutableStorageRecord("", null))).getExpiration() == null;
+    }
+}
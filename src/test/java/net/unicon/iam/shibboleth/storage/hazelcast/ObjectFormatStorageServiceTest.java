@@ -0,0 +1,62 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.InMemoryFormat;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import org.opensaml.storage.MutableStorageRecord;
+import org.opensaml.storage.StorageService;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.annotation.Nonnull;
+import java.util.Collections;
+
+public class ObjectFormatStorageServiceTest extends HazelcastStorageServiceTest {
+    private HazelcastMapBackedStorageService storageService;
+    private HazelcastInstance hazelcastInstance;
+
+    @BeforeClass
+    @Override
+    protected void setUp() throws ComponentInitializationException {
+        Config config = new Config().setClusterName("object-format-test");
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        config.addMapConfig(new MapConfig("*").setInMemoryFormat(InMemoryFormat.OBJECT));
+        HazelcastStorageSerialization.addSerializers(config.getSerializationConfig());
+        this.hazelcastInstance = Hazelcast.newHazelcastInstance(config);
+
+        this.storageService = new HazelcastMapBackedStorageService(this.hazelcastInstance);
+        this.storageService.setId("test");
+        super.setUp();
+    }
+
+    @AfterClass
+    @Override
+    protected void tearDown() {
+        this.hazelcastInstance.shutdown();
+        super.tearDown();
+    }
+
+    @Nonnull
+    @Override
+    protected StorageService getStorageService() {
+        return this.storageService;
+    }
+
+    @Test
+    public void storedRecordIsolationTest() throws Exception {
+        String context = "storedRecordIsolationTest";
+        this.storageService.create(context, "key", "value", null);
+
+        MutableStorageRecord record = (MutableStorageRecord) this.storageService.read(context, "key");
+        record.setValue("changed");
+        assert this.storageService.read(context, "key").getValue().equals("value");
+        assert this.storageService.readAll(context, Collections.singleton("key")).get("key").getValue().equals("value");
+
+        assert this.storageService.updateWithVersion(1, context, "key", "updated", null) == 2;
+        assert this.storageService.read(context, "key", 1).getSecond().getValue().equals("updated");
+    }
+}
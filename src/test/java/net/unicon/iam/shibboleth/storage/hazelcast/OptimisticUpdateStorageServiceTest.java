@@ -0,0 +1,92 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.unicon.iam.shibboleth.storage.hazelcast.metrics.StorageOperation;
+import org.opensaml.storage.StorageService;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class OptimisticUpdateStorageServiceTest extends HazelcastStorageServiceTest {
+    private HazelcastMapBackedStorageService storageService;
+    private HazelcastInstance hazelcastInstance;
+
+    @BeforeClass
+    @Override
+    protected void setUp() throws ComponentInitializationException {
+        this.hazelcastInstance = Hazelcast.newHazelcastInstance();
+        this.storageService = new HazelcastMapBackedStorageService(this.hazelcastInstance);
+        this.storageService.setId("optimistic");
+        this.storageService.setOptimisticUpdates(true);
+        this.storageService.setOptimisticUpdateMaxAttempts(1000);
+        this.storageService.setNearCachedContexts(Collections.singleton("testNearCachedUpdates"));
+        this.storageService.setMetricsEnabled(true);
+        super.setUp();
+    }
+
+    @AfterClass
+    @Override
+    protected void tearDown() {
+        this.hazelcastInstance.shutdown();
+        super.tearDown();
+    }
+
+    @Nonnull
+    @Override
+    protected StorageService getStorageService() {
+        return this.storageService;
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        String context = "testConcurrentUpdates";
+        this.storageService.create(context, "key", "value", System.currentTimeMillis() + 600000);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<Boolean>> tasks = new ArrayList<>();
+            for (int i = 0; i < 400; i++) {
+                String value = Integer.toString(i);
+                tasks.add(() -> this.storageService.update(context, "key", value, System.currentTimeMillis() + 600000));
+            }
+            for (Future<Boolean> future : executorService.invokeAll(tasks)) {
+                assert future.get();
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        // no update is lost, every one of them incremented the version
+        assert this.storageService.read(context, "key").getVersion() == 401;
+        long conflicts = this.storageService.getMetrics().getContextMetrics(context).getOperation(StorageOperation.UPDATE).getConflicts();
+        assert conflicts == this.storageService.getMetrics().getConflictCount();
+    }
+
+    @Test
+    public void testNearCachedUpdates() throws Exception {
+        String context = "testNearCachedUpdates";
+        long expiration = System.currentTimeMillis() + 600000;
+        this.storageService.create(context, "key", "value", expiration);
+
+        for (int i = 1; i <= 10; i++) {
+            // the read fills the near cache, which the update must not rely on
+            assert this.storageService.read(context, "key").getVersion() == i;
+            assert this.storageService.update(context, "key", "value" + i, expiration + i * 1000L);
+        }
+        assert this.storageService.read(context, "key").getValue().equals("value10");
+        // the time to live is written together with the record
+        long expirationTime = this.hazelcastInstance.getMap(context).getEntryView("key").getExpirationTime();
+        assert Math.abs(expirationTime - expiration - 10000) < 1000;
+    }
+}
@@ -0,0 +1,111 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.VersionMismatchException;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+public class ReplayCacheStorageServiceTest {
+    private HazelcastInstance hazelcastInstance;
+    private ReplayCacheStorageService storageService;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        this.hazelcastInstance = Hazelcast.newHazelcastInstance();
+        this.storageService = new ReplayCacheStorageService(this.hazelcastInstance);
+        this.storageService.setId("replay");
+        this.storageService.initialize();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        this.storageService.destroy();
+    }
+
+    @Test
+    public void testCreateAndRead() throws Exception {
+        String context = "testCreateAndRead";
+        long expiration = System.currentTimeMillis() + 600000;
+
+        assert this.storageService.create(context, "id", "ignored", expiration);
+        assert !this.storageService.create(context, "id", "ignored", expiration);
+        assert this.storageService.create("otherContext", "id", "ignored", expiration);
+
+        StorageRecord record = this.storageService.read(context, "id");
+        assert record != null && record.getExpiration() == expiration && record.getVersion() == 1;
+        assert this.storageService.read(context, "missing") == null;
+        assert this.storageService.read(context, "id", 1).getSecond() == null;
+        assert this.hazelcastInstance.getMap(context).get(ReplayCacheStorageService.ReplayCacheKey.of(context, "id")).equals(expiration);
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        String context = "testExpiration";
+        assert this.storageService.create(context, "id", "", System.currentTimeMillis() + 500);
+        Thread.sleep(1500);
+        assert this.storageService.read(context, "id") == null;
+        assert this.storageService.create(context, "id", "", System.currentTimeMillis() + 600000);
+
+        long expiration = System.currentTimeMillis() + 900000;
+        assert this.storageService.updateExpiration(context, "id", expiration);
+        assert this.storageService.read(context, "id").getExpiration() == expiration;
+        assert !this.storageService.updateExpiration(context, "missing", expiration);
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        String context = "testDelete";
+        this.storageService.create(context, "id", "", null);
+        try {
+            this.storageService.deleteWithVersion(2, context, "id");
+            assert false;
+        } catch (VersionMismatchException e) {
+            // expected
+        }
+        assert this.storageService.deleteWithVersion(1, context, "id");
+        assert !this.storageService.delete(context, "id");
+
+        this.storageService.create(context, "id", "", null);
+        this.storageService.deleteContext(context);
+        assert this.storageService.read(context, "id") == null;
+    }
+
+    @Test
+    public void testBulkOperations() throws Exception {
+        String context = "testBulkOperations";
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            values.put(Integer.toString(i), "");
+        }
+        this.storageService.create(context, "0", "", null);
+
+        Map<String, Boolean> created = this.storageService.createAll(context, values, System.currentTimeMillis() + 600000);
+        assert !created.get("0") && created.get("99");
+        assert this.storageService.readAll(context, Arrays.asList("1", "2", "missing")).keySet().equals(new HashSet<>(Arrays.asList("1", "2")));
+        Map<String, Boolean> deleted = this.storageService.deleteAll(context, Arrays.asList("1", "missing"));
+        assert deleted.get("1") && !deleted.get("missing");
+    }
+
+    @Test
+    public void testStorageRecordSettingsRejected() {
+        ReplayCacheStorageService storageService = new ReplayCacheStorageService(this.hazelcastInstance);
+        storageService.setId("rejected");
+        storageService.setShutdownInstanceOnDestroy(false);
+        storageService.setValueChunkingThreshold(1024);
+        try {
+            storageService.initialize();
+            assert false;
+        } catch (ComponentInitializationException e) {
+            assert e.getMessage().contains("chunking");
+        }
+    }
+}
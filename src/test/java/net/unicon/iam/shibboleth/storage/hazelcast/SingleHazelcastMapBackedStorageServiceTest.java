@@ -1,7 +1,9 @@
 package net.unicon.iam.shibboleth.storage.hazelcast;
 
+import com.hazelcast.config.Config;
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.spi.impl.SerializationServiceSupport;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import org.opensaml.storage.StorageService;
 import org.testng.annotations.AfterClass;
@@ -36,6 +38,25 @@ public class SingleHazelcastMapBackedStorageServiceTest extends HazelcastStorage
         return singleHazelcastMapBackedStorageService;
     }
 
+    @Test
+    public void legacyKeyFormatTest() throws Exception {
+        Config config = new Config().setClusterName("legacy-key-format-test");
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        HazelcastInstance legacyInstance = Hazelcast.newHazelcastInstance(config);
+        SingleHazelcastMapBackedStorageService legacy = new SingleHazelcastMapBackedStorageService("legacy", legacyInstance);
+        legacy.setId("legacy");
+        legacy.setLegacyKeyFormat(true);
+        legacy.initialize();
+        try {
+            SingleHazelcastMapBackedStorageService.CompositeKey key = new SingleHazelcastMapBackedStorageService.CompositeKey("context", "key");
+            assert ((SerializationServiceSupport) legacyInstance).getSerializationService().toData(key).getType() != CompositeKeySerializer.TYPE_ID;
+            assert legacy.create("context", "key", "value", null);
+            assert legacy.read("context", "key").getValue().equals("value");
+        } finally {
+            legacy.destroy();
+        }
+    }
+
     @Test
     public void compositeKeyTest() {
         SingleHazelcastMapBackedStorageService.CompositeKey key1 = new SingleHazelcastMapBackedStorageService.CompositeKey("here", "there");
@@ -48,4 +69,18 @@ public class SingleHazelcastMapBackedStorageServiceTest extends HazelcastStorage
         assert !key1.equals(key3);
         assert key1.hashCode() == key2.hashCode();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void partitionAwareKeyTest() {
+        SingleHazelcastMapBackedStorageService colocated = new SingleHazelcastMapBackedStorageService("colocated", this.hazelcastInstance);
+        colocated.setPartitionsPerContext(1);
+
+        Object key1 = colocated.getKey("here", "there");
+        Object key2 = colocated.getKey("here", "elsewhere");
+
+        assert key1 instanceof SingleHazelcastMapBackedStorageService.PartitionAwareCompositeKey;
+        assert key1.equals(colocated.getKey("here", "there"));
+        assert this.hazelcastInstance.getPartitionService().getPartition(key1).getPartitionId()
+                == this.hazelcastInstance.getPartitionService().getPartition(key2).getPartitionId();
+    }
+}
@@ -0,0 +1,184 @@
+package net.unicon.iam.shibboleth.storage.hazelcast;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.MapStoreConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import org.opensaml.storage.StorageRecord;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+public class StorageRecordLogMapStoreTest {
+    private Path directory;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("storage-record-log");
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(this.directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private HazelcastInstance newMember() {
+        return newMember(StorageRecordLogMapStore.newMapStoreConfig(this.directory.toString(), 1));
+    }
+
+    private HazelcastInstance newMember(MapStoreConfig mapStoreConfig) {
+        Config config = new Config().setClusterName("map-store-test");
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        config.addMapConfig(new MapConfig("persisted")
+                .setMapStoreConfig(new MapStoreConfig(mapStoreConfig)));
+        config.addMapConfig(new MapConfig("persisted" + AbstractHazelcastMapBackedStorageService.CHUNK_MAP_SUFFIX)
+                .setMapStoreConfig(new MapStoreConfig(mapStoreConfig)));
+        HazelcastStorageSerialization.addSerializers(config.getSerializationConfig());
+        return Hazelcast.newHazelcastInstance(config);
+    }
+
+    private SingleHazelcastMapBackedStorageService newStorageService(HazelcastInstance hazelcastInstance) throws Exception {
+        SingleHazelcastMapBackedStorageService storageService = new SingleHazelcastMapBackedStorageService("persisted", hazelcastInstance);
+        storageService.setId("persisted");
+        storageService.setShutdownInstanceOnDestroy(false);
+        storageService.setValueChunkingThreshold(64);
+        storageService.setValueChunkSize(16);
+        storageService.initialize();
+        return storageService;
+    }
+
+    @Test
+    public void warmRestartTest() throws Exception {
+        HazelcastInstance member = newMember();
+        SingleHazelcastMapBackedStorageService storageService = newStorageService(member);
+        for (int i = 0; i < 100; i++) {
+            storageService.create("context", Integer.toString(i), "value" + i, System.currentTimeMillis() + 600000);
+        }
+        storageService.create("context", "forever", "value", null);
+        storageService.create("context", "expiring", "value", System.currentTimeMillis() + 1500);
+        storageService.update("context", "1", "updated", System.currentTimeMillis() + 600000);
+        storageService.delete("context", "2");
+        storageService.destroy();
+        // a graceful shutdown writes the pending changes
+        member.shutdown();
+        Thread.sleep(1500);
+
+        member = newMember();
+        try {
+            storageService = newStorageService(member);
+            member.getMap("persisted");
+            long deadline = System.currentTimeMillis() + 30000;
+            while (storageService.read("context", "0") == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+
+            StorageRecord updated = storageService.read("context", "1");
+            assert updated != null && updated.getValue().equals("updated") && updated.getVersion() == 2;
+            assert storageService.read("context", "99").getValue().equals("value99");
+            assert storageService.read("context", "forever").getExpiration() == null;
+            assert storageService.read("context", "2") == null;
+            assert storageService.read("context", "expiring") == null;
+            storageService.destroy();
+        } finally {
+            member.shutdown();
+        }
+    }
+
+    /**
+     * Read a record once it and its chunks are replayed, which happens in the background after a restart.
+     */
+    private static StorageRecord readReplayed(SingleHazelcastMapBackedStorageService storageService, String key) throws Exception {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (true) {
+            try {
+                StorageRecord storageRecord = storageService.read("context", key);
+                if (storageRecord != null || System.currentTimeMillis() > deadline) {
+                    return storageRecord;
+                }
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    public void chunkedValueRestartTest() throws Exception {
+        String value = String.join("", Collections.nCopies(20, "a chunked value "));
+        HazelcastInstance member = newMember();
+        SingleHazelcastMapBackedStorageService storageService = newStorageService(member);
+        storageService.create("context", "chunked", value, System.currentTimeMillis() + 600000);
+        storageService.create("context", "forever", value + "forever", null);
+        storageService.destroy();
+        member.shutdown();
+
+        member = newMember();
+        try {
+            storageService = newStorageService(member);
+            member.getMap("persisted");
+            member.getMap("persisted" + AbstractHazelcastMapBackedStorageService.CHUNK_MAP_SUFFIX);
+            StorageRecord chunked = readReplayed(storageService, "chunked");
+            assert chunked != null && chunked.getValue().equals(value);
+            assert Math.abs(chunked.getExpiration() - System.currentTimeMillis() - 600000) < 60000;
+            StorageRecord forever = readReplayed(storageService, "forever");
+            assert forever != null && forever.getValue().equals(value + "forever") && forever.getExpiration() == null;
+            storageService.destroy();
+        } finally {
+            member.shutdown();
+        }
+    }
+
+    @Test
+    public void compactionTest() throws Exception {
+        // written through into small segments, so that the overwritten versions fill many of them
+        MapStoreConfig mapStoreConfig = StorageRecordLogMapStore.newMapStoreConfig(this.directory.toString(), 0)
+                .setProperty(StorageRecordLogMapStore.SEGMENT_SIZE_PROPERTY, "4096")
+                .setProperty(StorageRecordLogMapStore.MAX_SEGMENTS_PROPERTY, "2");
+        HazelcastInstance member = newMember(mapStoreConfig);
+        SingleHazelcastMapBackedStorageService storageService = newStorageService(member);
+        for (int i = 0; i < 50; i++) {
+            storageService.create("context", Integer.toString(i), "value", null);
+        }
+        for (int round = 1; round <= 40; round++) {
+            for (int i = 0; i < 50; i++) {
+                storageService.update("context", Integer.toString(i), "value" + round, null);
+            }
+        }
+        for (int i = 0; i < 25; i++) {
+            storageService.delete("context", Integer.toString(i));
+        }
+        storageService.destroy();
+        member.shutdown();
+        try (Stream<Path> paths = Files.walk(this.directory)) {
+            assert paths.filter(path -> path.toString().endsWith(".log")).count() < 10;
+        }
+
+        member = newMember(mapStoreConfig);
+        try {
+            storageService = newStorageService(member);
+            member.getMap("persisted");
+            for (int i = 25; i < 50; i++) {
+                StorageRecord storageRecord = readReplayed(storageService, Integer.toString(i));
+                assert storageRecord != null && storageRecord.getValue().equals("value40") && storageRecord.getVersion() == 41;
+            }
+            for (int i = 0; i < 25; i++) {
+                assert storageService.read("context", Integer.toString(i)) == null;
+            }
+            storageService.destroy();
+        } finally {
+            member.shutdown();
+        }
+    }
+}